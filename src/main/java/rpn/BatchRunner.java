@@ -0,0 +1,217 @@
+package rpn;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Batch entry point: evaluates every line of a file as an
+ * independent RPN expression, one output line per input line.
+ *
+ * The file is split into ranges of whole lines, each range is
+ * memory-mapped and evaluated on a worker pool, with one Calculator
+ * per worker that is cleared between lines. Ranges are written out
+ * in file order through a large buffered writer, with a bounded number
+ * of ranges in flight. A line that fails to push is reported with the
+ * file offset of the line, followed by the stack evaluated so far.
+ *
+ * Usage: BatchRunner <input> [output] [workers]
+ **/
+public final class BatchRunner {
+    private static final int DEFAULT_RANGE_BYTES = 4 << 20;
+    private static final int WRITE_BUFFER_CHARS = 1 << 20;
+    private static final int RANGES_IN_FLIGHT_PER_WORKER = 4;
+
+    private final int workers;
+    private final int rangeBytes;
+    private final ThreadLocal<Calculator<Number>> calculator =
+            ThreadLocal.withInitial(() -> Calculator.getInstance(Number::of, Stack::newInstance));
+
+    private BatchRunner(int workers, int rangeBytes) {
+        this.workers = workers;
+        this.rangeBytes = rangeBytes;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: BatchRunner <input> [output] [workers]");
+            System.exit(2);
+        }
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        Writer out = args.length > 1 && !args[1].equals("-")
+                ? Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8)
+                : new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+        try (Writer writer = new BufferedWriter(out, WRITE_BUFFER_CHARS)) {
+            Summary summary = run(Paths.get(args[0]), writer, workers);
+            System.err.println(summary);
+        }
+    }
+
+    public static Summary run(Path input, Writer output, int workers) throws IOException {
+        return run(input, output, workers, DEFAULT_RANGE_BYTES);
+    }
+
+    /**
+     * Evaluates input into output, rangeBytes being the target size
+     * of a range (ranges always end at a line break).
+     * output is flushed but not closed.
+     **/
+    public static Summary run(Path input, Writer output, int workers, int rangeBytes) throws IOException {
+        if (workers < 1 || rangeBytes < 1) throw new IllegalArgumentException("Workers and range size must be positive");
+        return new BatchRunner(workers, rangeBytes).process(input, output);
+    }
+
+    private Summary process(Path input, Writer output) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "rpn-batch");
+            t.setDaemon(true);
+            return t;
+        });
+        long lines = 0, errors = 0;
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            ArrayDeque<Future<Range>> inFlight = new ArrayDeque<>();
+            long size = channel.size(), start = 0;
+            while (start < size || !inFlight.isEmpty()) {
+                if (start < size && inFlight.size() < workers * RANGES_IN_FLIGHT_PER_WORKER) {
+                    long end = lineEnd(channel, Math.min(size, start + rangeBytes), size);
+                    long from = start;
+                    inFlight.add(executor.submit(() -> evaluate(channel, from, end)));
+                    start = end;
+                    continue;
+                }
+                Range range = inFlight.poll().get();
+                output.append(range.output);
+                lines += range.lines;
+                errors += range.errors;
+            }
+            output.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return new Summary(lines, errors);
+    }
+
+    /*
+     * Offset just past the first line break at or after position.
+     */
+    private static long lineEnd(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            for (int i = 0; i < read; i++)
+                if (buffer.get(i) == '\n') return position + i + 1;
+            position += read;
+        }
+        return size;
+    }
+
+    private Range evaluate(FileChannel channel, long start, long end) {
+        byte[] bytes = new byte[(int) (end - start)];
+        try {
+            channel.map(FileChannel.MapMode.READ_ONLY, start, bytes.length).get(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Calculator<Number> rpn = calculator.get();
+        Range range = new Range();
+        List<String> tokens = new ArrayList<>();
+        int lineStart = 0;
+        for (int i = 0; i <= bytes.length; i++) {
+            if (i < bytes.length && bytes[i] != '\n') continue;
+            int lineEnd = i > lineStart && bytes[i - 1] == '\r' ? i - 1 : i;
+            if (i < bytes.length || lineEnd > lineStart) {
+                tokenize(bytes, lineStart, lineEnd, tokens);
+                evaluateLine(rpn, tokens, start + lineStart, range);
+            }
+            lineStart = i + 1;
+        }
+        return range;
+    }
+
+    private static void tokenize(byte[] bytes, int from, int to, List<String> tokens) {
+        tokens.clear();
+        int tokenStart = -1;
+        for (int i = from; i <= to; i++) {
+            boolean blank = i == to || bytes[i] == ' ' || bytes[i] == '\t';
+            if (!blank && tokenStart < 0) tokenStart = i;
+            else if (blank && tokenStart >= 0) {
+                tokens.add(new String(bytes, tokenStart, i - tokenStart, StandardCharsets.UTF_8));
+                tokenStart = -1;
+            }
+        }
+    }
+
+    private static void evaluateLine(Calculator<Number> rpn, List<String> tokens, long offset, Range range) {
+        rpn.push("clear");
+        Optional<Exception> maybeException = rpn.push(tokens.toArray(new String[0]));
+        StringBuilder out = range.output;
+        if (maybeException.isPresent()) {
+            out.append("Error at offset ").append(offset).append(": ")
+                    .append(maybeException.get().getMessage()).append(" | ");
+            range.errors++;
+        }
+        try {
+            rpn.render(out);
+        } catch (IOException e) {
+            // StringBuilder doesn't throw
+            throw new UncheckedIOException(e);
+        }
+        out.append('\n');
+        range.lines++;
+    }
+
+    /*
+     * Output of one range of lines.
+     */
+    private static final class Range {
+        private final StringBuilder output = new StringBuilder();
+        private long lines;
+        private long errors;
+    }
+
+    /*
+     * Lines processed, and how many of them failed to push.
+     */
+    public static final class Summary {
+        private final long lines;
+        private final long errors;
+
+        private Summary(long lines, long errors) {
+            this.lines = lines;
+            this.errors = errors;
+        }
+
+        public long getLines() { return lines; }
+        public long getErrors() { return errors; }
+
+        @Override
+        public String toString() {
+            return lines + " lines, " + errors + " errors";
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package rpn;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Limits of one bounded evaluation: a wall-clock deadline,
+ * a maximum number of operator nodes to compute (the unit
+ * of Measurable.size()) and a cancellation flag.
+ *
+ * Commands check the budget of the evaluating thread cooperatively,
+ * once their operands are available and before applying the operator,
+ * so that everything computed so far stays cached for a retry.
+ * A budget is charged by one evaluating thread, cancel() may
+ * be called from any thread.
+ **/
+public final class Budget {
+    private static final ThreadLocal<Budget> CURRENT = new ThreadLocal<>();
+    // skips the thread local lookup while no bounded evaluation runs
+    private static final AtomicInteger active = new AtomicInteger();
+    private static final int DEADLINE_CHECK_INTERVAL = 8;
+
+    private final long deadline;
+    private final long maxNodes;
+    private long charged;
+    private volatile boolean cancelled;
+
+    private Budget(long deadline, long maxNodes) {
+        this.deadline = deadline;
+        this.maxNodes = maxNodes;
+    }
+
+    public static Budget of(long timeout, TimeUnit unit, long maxNodes) {
+        return new Budget(System.nanoTime() + unit.toNanos(timeout), maxNodes);
+    }
+
+    public static Budget of(long timeout, TimeUnit unit) {
+        return of(timeout, unit, Long.MAX_VALUE);
+    }
+
+    /*
+     * Can be called from any thread, the evaluation stops at its next check.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public long getCharged() { return charged; }
+
+    /**
+     * Runs the evaluation with this budget installed on the current thread.
+     **/
+    public <T> T run(Supplier<T> evaluation) {
+        Budget previous = CURRENT.get();
+        CURRENT.set(this);
+        active.incrementAndGet();
+        try {
+            return evaluation.get();
+        } finally {
+            active.decrementAndGet();
+            if (previous == null) CURRENT.remove();
+            else CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Charges one computed node to the budget of the current thread.
+     * Returns the reason to stop if the budget is exhausted.
+     **/
+    static Optional<Failure> charge() {
+        if (active.get() == 0) return Optional.empty();
+        Budget budget = CURRENT.get();
+        return budget == null ? Optional.empty() : budget.chargeOne();
+    }
+
+    /*
+     * Whether a budget is installed on the current thread.
+     */
+    static boolean bounded() {
+        return active.get() != 0 && CURRENT.get() != null;
+    }
+
+    private Optional<Failure> chargeOne() {
+        if (cancelled) return Optional.of(Failure.CANCELLED);
+        if (charged >= maxNodes) return Optional.of(Failure.BUDGET_EXCEEDED);
+        // the clock is read on the first charge and every few nodes after
+        if (charged % DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() - deadline > 0)
+            return Optional.of(Failure.TIMEOUT);
+        charged++;
+        return Optional.empty();
+    }
+}
@@ -3,6 +3,12 @@ package rpn;
 import io.vavr.control.Either;
 
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 /**
@@ -11,11 +17,25 @@ import java.util.function.Function;
  **/
 public interface CacheStrategy<E> extends Function<Command<E>, Command<E>>{
 
+    /**
+     * Notifies the strategy that the commands have been consumed
+     * (by an operator, undo or clear) and are no longer stack entries.
+     **/
+    default void release(List<Command<E>> commands) {}
+
+    /**
+     * No caching, for commands that memoize by themselves.
+     **/
+    static<E> CacheStrategy<E> none() {
+        return uncached -> uncached;
+    }
+
     static<E> CacheStrategy<E> get() {
         return new CacheStrategy<E>() {
             /*
              * Decorator to provide caching capability.
-             * Implementation mimics the double locking mechanism of a singleton
+             * Implementation mimics the double locking mechanism of a singleton.
+             * Transient failures (timeout, budget) are returned but not cached.
              * */
             @Override
             public Command<E> apply(Command<E> uncached) {
@@ -25,13 +45,18 @@ public interface CacheStrategy<E> extends Function<Command<E>, Command<E>>{
 
                     @Override
                     public Either<Exception, E> apply() {
-                        if (result == null) {
+                        Either<Exception, E> r = result;
+                        if (r == null) {
                             synchronized (lock) {
-                                if (result == null)
-                                    result = uncached.apply();
+                                r = result;
+                                if (r == null) {
+                                    r = uncached.apply();
+                                    if (r.isRight() || !Failure.isTransient(r.getLeft()))
+                                        result = r;
+                                }
                             }
                         }
-                        return result;
+                        return r;
                     }
 
                     @Override
@@ -43,8 +68,184 @@ public interface CacheStrategy<E> extends Function<Command<E>, Command<E>>{
                     public int size() {
                         return uncached.size();
                     }
+
+                    // the decorator, its lock and its result
+                    @Override
+                    public long retainedBytes() {
+                        return 2 * OBJECT_BYTES + RESULT_BYTES + uncached.retainedBytes();
+                    }
+
+                    @Override
+                    public Opcode opcode() {
+                        return uncached.opcode();
+                    }
                 };
             }
         };
     }
+
+    /**
+     * Caches like get(), and in addition looks every operator up in the
+     * process-wide ResultCache before computing it, so that sessions
+     * share the results of identical subexpressions.
+     **/
+    static<E extends Operatable<E>> CacheStrategy<E> shared() {
+        return shared(ResultCache.<E>shared());
+    }
+
+    /*
+     * Operands are evaluated first (through their own caches) to build
+     * the key. On a miss the operator is applied to them directly, the
+     * underlying command is only used for its structure.
+     */
+    static<E extends Operatable<E>> CacheStrategy<E> shared(ResultCache<E> results) {
+        CacheStrategy<E> cache = get();
+        return uncached -> {
+            Opcode opcode = uncached.opcode();
+            if (opcode == Opcode.Literal || opcode == Opcode.Custom)
+                return cache.apply(uncached);
+            return cache.apply(new Command<E>() {
+                @Override
+                public Either<Exception, E> apply() {
+                    List<Command<E>> operands = uncached.undo();
+                    Either<Exception, E> left = operands.get(0).apply();
+                    if (left.isLeft()) return left;
+                    Either<Exception, E> right = null;
+                    if (opcode.arity() == 2) {
+                        right = operands.get(1).apply();
+                        if (right.isLeft()) return right;
+                    }
+                    E r = right == null ? null : right.get();
+                    Optional<Either<Exception, E>> hit = results.get(opcode, left.get(), r);
+                    if (hit.isPresent()) return hit.get();
+                    Optional<Failure> exhausted = Budget.charge();
+                    if (exhausted.isPresent()) return Either.left(exhausted.get());
+                    Either<Exception, E> result;
+                    try {
+                        result = Either.right(r == null ? opcode.apply(left.get()) : opcode.apply(left.get(), r));
+                    } catch (Exception e) {
+                        result = Either.left(e);
+                    }
+                    results.put(opcode, left.get(), r, result);
+                    return result;
+                }
+
+                @Override
+                public List<Command<E>> undo() {
+                    return uncached.undo();
+                }
+
+                @Override
+                public int size() {
+                    return uncached.size();
+                }
+
+                @Override
+                public long retainedBytes() {
+                    return OBJECT_BYTES + uncached.retainedBytes();
+                }
+
+                @Override
+                public Opcode opcode() {
+                    return opcode;
+                }
+            });
+        };
+    }
+
+    /**
+     * Speculative strategy on a bounded pool of daemon workers.
+     * Once the backlog is full, new entries are not speculated
+     * and simply evaluate lazily on read. Idle workers exit after a
+     * second, so a dropped strategy does not leave its threads behind.
+     **/
+    static<E> CacheStrategy<E> speculative(int workers, int backlog) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                workers, workers, 1L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(backlog),
+                r -> {
+                    Thread t = new Thread(r, "rpn-speculative");
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.DiscardPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return speculative(executor);
+    }
+
+    /**
+     * Caches like get(), and in addition evaluates every new stack entry
+     * in the background as soon as it is created, so that a later read
+     * finds the result already computed.
+     *
+     * Background evaluation shares the cache of the entry, so an entry is
+     * still evaluated at most once, whichever thread gets there first.
+     * Pending work is cancelled once the entry is released.
+     **/
+    static<E> CacheStrategy<E> speculative(ExecutorService executor) {
+        CacheStrategy<E> cache = get();
+        return new CacheStrategy<E>() {
+            @Override
+            public Command<E> apply(Command<E> uncached) {
+                SpeculativeCommand<E> command = new SpeculativeCommand<>(cache.apply(uncached));
+                command.pending = executor.submit(command::apply);
+                return command;
+            }
+
+            @Override
+            public void release(List<Command<E>> commands) {
+                for (Command<E> command : commands) {
+                    if (command instanceof SpeculativeCommand)
+                        ((SpeculativeCommand<E>) command).cancel();
+                }
+            }
+        };
+    }
+
+    /*
+     * Cached command with a handle on its background evaluation.
+     */
+    final class SpeculativeCommand<E> implements Command<E> {
+        private final Command<E> cached;
+        private volatile Future<?> pending;
+
+        private SpeculativeCommand(Command<E> cached) {
+            this.cached = cached;
+        }
+
+        /*
+         * Only drops work that has not started yet. A running
+         * evaluation completes and keeps its result cached.
+         */
+        private void cancel() {
+            Future<?> f = pending;
+            if (f != null)
+                f.cancel(false);
+        }
+
+        @Override
+        public Either<Exception, E> apply() {
+            return cached.apply();
+        }
+
+        @Override
+        public List<Command<E>> undo() {
+            return cached.undo();
+        }
+
+        @Override
+        public int size() {
+            return cached.size();
+        }
+
+        @Override
+        public long retainedBytes() {
+            return OBJECT_BYTES + cached.retainedBytes();
+        }
+
+        @Override
+        public Opcode opcode() {
+            return cached.opcode();
+        }
+    }
 }
@@ -2,7 +2,12 @@ package rpn;
 
 import io.vavr.control.Either;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -13,12 +18,51 @@ import java.util.stream.Collectors;
  * Push: to add one or many numbers or operators to the calculation stack.
  * Abstract syntax tree is constructed on the fly.
  * Evaluate: to execute the commands in the stack
+ * Subscribe: to be notified of stack changes as they happen,
+ * instead of polling evaluate.
+ * RetainedBytes: to monitor the memory held by the session.
  */
-public interface Calculator<E extends Operatable<E>> {
+public interface Calculator<E extends Operatable<E>> extends Publisher<E> {
     List<Either<Exception, E>> evaluate();
 
+    /*
+     * Evaluation bounded by a deadline and node budget.
+     * Entries that don't fit return a transient Failure (Timeout,
+     * BudgetExceeded or Cancelled), everything computed before that
+     * stays cached so that a retry resumes where this one stopped.
+     */
+    List<Either<Exception, E>> evaluate(Budget budget);
+
+    /*
+     * Evaluation traced by the profiler when it is sampled, see Profiler.
+     * Only sees the nodes of a calculator built with a Profiler.traced() strategy.
+     */
+    List<Either<Exception, E>> evaluate(Profiler profiler);
+
     Optional<Exception> push(String elementOrOperator);
 
+    /*
+     * Estimated heap held by the stack, see Measurable.retainedBytes().
+     */
+    long retainedBytes();
+
+    /*
+     * Writes the evaluated stack to out (a CharBuffer is an Appendable
+     * too): results separated by spaces, failures by their message.
+     * Numbers are written without allocating, see Operatable.render().
+     */
+    default void render(Appendable out) throws IOException {
+        Renderer.render(evaluate(), out);
+    }
+
+    /*
+     * Same as render(Appendable), UTF-8 encoded.
+     * Throws BufferOverflowException if out is too small.
+     */
+    default void render(ByteBuffer out) {
+        Renderer.render(evaluate(), out);
+    }
+
     /*
      * Pushing a list of numbers or operators.
      */
@@ -31,12 +75,95 @@ public interface Calculator<E extends Operatable<E>> {
         return maybeException;
     }
 
+    /*
+     * Pushing every whitespace separated token read from input,
+     * stopping at the first error like push(String ...).
+     * EagerBuildLazyEvalCalculator pipelines the stages, see Pipeline.
+     */
+    default Optional<Exception> pushAll(Reader input) {
+        Pipeline.Tokenizer tokenizer = new Pipeline.Tokenizer(input, () -> {});
+        try {
+            String token;
+            while ((token = tokenizer.next()) != null) {
+                Optional<Exception> maybeException = push(token);
+                if (maybeException.isPresent()) return maybeException;
+            }
+            return Optional.empty();
+        } catch (IOException e) {
+            return Optional.of(e);
+        }
+    }
+
     static<O extends Operatable<O>> Calculator<O> getInstance(
             Function<String, Optional<O>> operatableProvider, Supplier<Stack<Command<O>>> stackProvider) {
         EagerBuildLazyEvalCalculator<O> c = new EagerBuildLazyEvalCalculator<>(operatableProvider, stackProvider);
         return c;
     }
 
+    /*
+     * Calculator with a caller chosen caching strategy,
+     * e.g. CacheStrategy.speculative() to evaluate entries in
+     * the background between pushes.
+     */
+    static<O extends Operatable<O>> Calculator<O> getInstance(
+            Function<String, Optional<O>> operatableProvider, Supplier<Stack<Command<O>>> stackProvider,
+            CacheStrategy<O> cacheStrategy) {
+        EagerBuildLazyEvalCalculator<O> c = new EagerBuildLazyEvalCalculator<>(operatableProvider, stackProvider);
+        c.cachingStrategy = cacheStrategy;
+        return c;
+    }
+
+    /*
+     * Calculator building the built-in operators with the given
+     * command factory, e.g. an OffHeapStore.
+     */
+    static<O extends Operatable<O>> Calculator<O> getInstance(
+            Function<String, Optional<O>> operatableProvider, CommandFactory<O> commandFactory,
+            Supplier<Stack<Command<O>>> stackProvider, CacheStrategy<O> cacheStrategy) {
+        EagerBuildLazyEvalCalculator<O> c = new EagerBuildLazyEvalCalculator<>(operatableProvider, stackProvider);
+        c.commandRegistry = CommandRegistry.getInstance(operatableProvider, commandFactory);
+        c.cachingStrategy = cacheStrategy;
+        return c;
+    }
+
+    /*
+     * Calculator admitting numbers within the memory limits of quota,
+     * see Quota. When a number doesn't fit, push returns a MemoryLimitExceeded
+     * Failure and leaves the stack as it was. With Policy.Compact, the
+     * entries whose value is known within a small Budget charged to the
+     * push (cached results cost nothing) are first replaced by literals of
+     * it, releasing their operands: undo then drops such an entry instead
+     * of giving them back. Work cut short by the budget stays cached, so a
+     * later push resumes it.
+     */
+    static<O extends Operatable<O>> Calculator<O> getInstance(
+            Function<String, Optional<O>> operatableProvider, CommandFactory<O> commandFactory,
+            Supplier<Stack<Command<O>>> stackProvider, CacheStrategy<O> cacheStrategy, Quota quota) {
+        EagerBuildLazyEvalCalculator<O> c = new EagerBuildLazyEvalCalculator<>(operatableProvider, stackProvider);
+        c.commandRegistry = CommandRegistry.getInstance(operatableProvider, commandFactory);
+        c.cachingStrategy = cacheStrategy;
+        c.account = quota.open(c);
+        return c;
+    }
+
+    /*
+     * Calculator whose nodes cache their own results (CommandFactory.memoized()),
+     * without a caching strategy wrapping every stack entry.
+     */
+    static<O extends Operatable<O>> Calculator<O> getMemoizedInstance(
+            Function<String, Optional<O>> operatableProvider, Supplier<Stack<Command<O>>> stackProvider) {
+        return getInstance(operatableProvider, CommandFactory.memoized(), stackProvider, CacheStrategy.none());
+    }
+
+    /*
+     * Calculator keeping its command trees off-heap. Nodes cache
+     * their own results, so no caching strategy is applied.
+     */
+    static<O extends Operatable<O>> Calculator<O> getOffHeapInstance(Function<String, Optional<O>> operatableProvider) {
+        OffHeapStore<O> store = OffHeapStore.newInstance();
+        return getInstance(operatableProvider, store, store::newStack, CacheStrategy.none());
+    }
+
 
     /*
      * This implementation of RPN calculator builds the calculation stack
@@ -55,6 +182,12 @@ public interface Calculator<E extends Operatable<E>> {
         private CommandRegistry<E> commandRegistry;
         private Supplier<Stack<Command<E>>> stackProvider;
         private CacheStrategy<E> cachingStrategy = CacheStrategy.get();
+        private Publisher.Broadcaster<E> publisher = Publisher.newInstance(EVENT_CAPACITY);
+        private Quota.Account account = Quota.unlimited().open(this);
+        private static final int EVENT_CAPACITY = 1 << 16;
+        // most nodes a push may compute to compact the stack
+        private static final int COMPACTION_NODES = 1 << 10;
+        private static final long COMPACTION_MILLIS = 10;
 
         private EagerBuildLazyEvalCalculator() {};
 
@@ -74,6 +207,30 @@ public interface Calculator<E extends Operatable<E>> {
             return storage.stream().map(c -> c.apply()).collect(Collectors.toList());
         }
 
+        /*
+         * Cached entries and literals cost nothing, so they are
+         * still returned after the budget is exhausted.
+         */
+        @Override
+        public List<Either<Exception, E>> evaluate(Budget budget) {
+            return budget.run(() -> evaluate());
+        }
+
+        @Override
+        public List<Either<Exception, E>> evaluate(Profiler profiler) {
+            return profiler.run(() -> evaluate());
+        }
+
+        @Override
+        public long retainedBytes() {
+            return storage.retainedBytes();
+        }
+
+        @Override
+        public void subscribe(Subscriber<E> subscriber) {
+            publisher.subscribe(subscriber);
+        }
+
         /*
          * Not thread safe, assuming push is called sequentially.
          * Possible to refactor it into a thread-safe version depending
@@ -81,9 +238,35 @@ public interface Calculator<E extends Operatable<E>> {
          */
         @Override
         public Optional<Exception> push(String elementOrOperator) {
-            Optional<CommandRegistry<E>.CommandDefinition> maybeDefinition = commandRegistry.get(elementOrOperator);
+            return push(elementOrOperator, commandRegistry.get(elementOrOperator));
+        }
+
+        /*
+         * Tokens are classified through the registry on a pipeline stage,
+         * only building the tree is left to the calling thread.
+         */
+        @Override
+        public Optional<Exception> pushAll(Reader input) {
+            return Pipeline.run(input, commandRegistry::get, this::push);
+        }
+
+        /*
+         * Pushing a token already looked up in the registry.
+         */
+        private Optional<Exception> push(
+                String elementOrOperator, Optional<CommandRegistry<E>.CommandDefinition> maybeDefinition) {
+            int position = storage.allSize() + 1;
+            Optional<Exception> maybeException = build(elementOrOperator, maybeDefinition);
+            account.update(storage.retainedBytes());
+            if (maybeException.isPresent() && publisher.hasSubscribers())
+                publisher.publish(Event.error(position, maybeException.get()));
+            return maybeException;
+        }
+
+        private Optional<Exception> build(
+                String elementOrOperator, Optional<CommandRegistry<E>.CommandDefinition> maybeDefinition) {
             if (!maybeDefinition.isPresent())
-                return Optional.of(new IllegalArgumentException("Unknown element or operator: " + elementOrOperator));
+                return Optional.of(Failure.unknownToken(elementOrOperator, storage.allSize() + 1));
             else {
                 CommandRegistry<E>.CommandDefinition definition = maybeDefinition.get();
                 CommandRegistry.ArgSize size = definition.getArgSize();
@@ -91,20 +274,114 @@ public interface Calculator<E extends Operatable<E>> {
                     List<Command<E>> commands;
                     if (size.equals(CommandRegistry.ArgSize.All)) {
                         List<Command<E>> all = storage.allElements();
-                        storage = stackProvider.get();
                         commands = definition.getTransformer().apply(all);
+                        // entries handed back as they were at the bottom stay where they are
+                        int kept = 0;
+                        while (kept < all.size() && kept < commands.size() && commands.get(kept) == all.get(kept))
+                            kept++;
+                        List<Command<E>> consumed;
+                        if (kept == 0) {
+                            consumed = all;
+                            replaceStorage();
+                        } else {
+                            consumed = storage.pop(all.size() - kept);
+                        }
+                        commands = commands.subList(kept, commands.size());
+                        cachingStrategy.release(consumed);
+                        publishPopped(kept, consumed.size());
                     } else {
                         if (storage.size() < size.value())
-                            throw new IllegalArgumentException(
-                                    "Operator '" + elementOrOperator + "' (position " + (storage.allSize() + 1) + "), insufficient parameter");
-                        commands = definition.getTransformer().apply(storage.pop(size.value()));
+                            return Optional.of(Failure.insufficientParameter(elementOrOperator, storage.allSize() + 1));
+                        List<Command<E>> args = storage.pop(size.value());
+                        commands = definition.getTransformer().apply(args);
+                        cachingStrategy.release(args);
+                        publishPopped(storage.size(), args.size());
                     }
-                    storage.push(commands.stream().map(c -> cachingStrategy.apply(c)).collect(Collectors.toList()));
+                    List<Command<E>> cached = commands.stream().map(c -> cachingStrategy.apply(c)).collect(Collectors.toList());
+                    if (size.equals(CommandRegistry.ArgSize.Zero)) {
+                        Optional<Exception> refused = admit(elementOrOperator, cached);
+                        if (refused.isPresent()) return refused;
+                    }
+                    int position = storage.size();
+                    storage.push(cached);
+                    if (publisher.hasSubscribers())
+                        for (Command<E> c : cached)
+                            publisher.publish(Event.pushed(position++, c));
                 } catch (Exception e) {
                     return Optional.of(e);
                 }
                 return Optional.empty();
             }
         }
+
+        /*
+         * A fresh stack from the provider, the old one is closed if it
+         * holds resources (MappedStack segment files).
+         */
+        private void replaceStorage() throws IOException {
+            Stack<Command<E>> replaced = storage;
+            storage = stackProvider.get();
+            if (replaced instanceof Closeable)
+                ((Closeable) replaced).close();
+        }
+
+        /*
+         * Only new entries (numbers) are checked against the quota,
+         * nothing has been popped for them yet.
+         */
+        private Optional<Exception> admit(String element, List<Command<E>> entries) {
+            long bytes = 0;
+            for (Command<E> c : entries)
+                bytes += c.retainedBytes();
+            if (account.admits(bytes)) return Optional.empty();
+            if (account.getPolicy() == Quota.Policy.Compact && compact()) {
+                account.update(storage.retainedBytes());
+                if (account.admits(bytes)) return Optional.empty();
+            }
+            account.refused();
+            cachingStrategy.release(entries);
+            return Optional.of(Failure.memoryLimitExceeded(element, storage.allSize() + 1));
+        }
+
+        /*
+         * Replaces the entries that evaluate to a value within the compaction
+         * budget by literals of it, returns whether any was. Entries from the
+         * first replaced one up are popped and pushed back.
+         */
+        private boolean compact() {
+            Budget budget = Budget.of(COMPACTION_MILLIS, TimeUnit.MILLISECONDS, COMPACTION_NODES);
+            List<Command<E>> all = storage.allElements();
+            List<Command<E>> replaced = new ArrayList<>();
+            List<Command<E>> replacement = new ArrayList<>();
+            int first = -1;
+            for (int i = 0; i < all.size(); i++) {
+                Command<E> entry = all.get(i);
+                Either<Exception, E> value = entry.opcode() == Opcode.Literal ? null : budget.run(entry::apply);
+                boolean collapses = value != null && value.isRight();
+                if (collapses && first < 0) first = i;
+                if (first < 0) continue;
+                if (collapses) {
+                    replaced.add(entry);
+                    replacement.add(cachingStrategy.apply(commandRegistry.literal(value.get())));
+                } else {
+                    replacement.add(entry);
+                }
+            }
+            if (first < 0) return false;
+            storage.pop(all.size() - first);
+            cachingStrategy.release(replaced);
+            publishPopped(first, all.size() - first);
+            storage.push(replacement);
+            if (publisher.hasSubscribers())
+                for (int i = 0; i < replacement.size(); i++)
+                    publisher.publish(Event.pushed(first + i, replacement.get(i)));
+            account.compacted();
+            return true;
+        }
+
+        private void publishPopped(int position, int count) {
+            if (count > 0 && publisher.hasSubscribers())
+                publisher.publish(Event.popped(position, count));
+        }
     }
 }
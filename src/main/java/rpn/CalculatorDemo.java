@@ -1,12 +1,15 @@
 package rpn;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.Optional;
 import java.util.Scanner;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
 public class CalculatorDemo {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         Calculator<Number> rpn = Calculator.getInstance(Number::of, new Supplier<Stack<Command<Number>>>() {
             @Override
             public Stack<Command<Number>> get() {
@@ -14,6 +17,7 @@ public class CalculatorDemo {
             }
         });
         Scanner in = new Scanner(System.in);
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
 
         while(true) {
             System.out.println("Enter list of numbers and operators. Supported Operators are: + - * / undo clear.");
@@ -22,12 +26,10 @@ public class CalculatorDemo {
             Optional<Exception> maybeException = rpn.push(s.split(" "));
             if (maybeException.isPresent())
                 System.out.println(maybeException.get().getMessage());
-            String result = rpn.evaluate().stream().map(r -> {
-                if (r.isLeft())
-                    return r.getLeft().getMessage();
-                else
-                    return r.get().toString();}).collect(Collectors.joining(" "));
-            System.out.println("Stack: " + result);
+            out.write("Stack: ");
+            rpn.render(out);
+            out.write(System.lineSeparator());
+            out.flush();
         }
 
     }
@@ -9,8 +9,11 @@ import java.util.List;
  * apply: execute the command.
  * undo: revert the execution.
  * size: measure the element count in command execution tree
+ * opcode: the operator applied by the command, Custom if opaque
  */
 public interface Command<R> extends Measurable {
     Either<Exception, R> apply();
     List<Command<R>> undo();
+
+    default Opcode opcode() { return Opcode.Custom; }
 }
@@ -0,0 +1,119 @@
+package rpn;
+
+import io.vavr.control.Either;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * Compact binary form of command trees, in prefix order:
+ * one opcode byte per node, followed by the literal text for
+ * literals. Decoded trees are rebuilt with a command factory,
+ * results are not encoded and evaluate again after decoding.
+ *
+ * Only trees of built-in operators can be encoded, a Custom
+ * command has no portable form.
+ *
+ * Evaluation results are encoded as a status byte followed by
+ * the value text, the code of a preallocated Failure, or the
+ * message of any other exception.
+ **/
+public final class CommandCodec<E extends Operatable<E>> {
+    private static final int VALUE = 0, FAILURE = 1, EXCEPTION = 2;
+
+    private final Function<E, String> writer;
+    private final Function<String, Optional<E>> reader;
+    private final CommandFactory<E> factory;
+
+    private CommandCodec(Function<E, String> writer, Function<String, Optional<E>> reader, CommandFactory<E> factory) {
+        this.writer = writer;
+        this.reader = reader;
+        this.factory = factory;
+    }
+
+    public static<E extends Operatable<E>> CommandCodec<E> of(
+            Function<E, String> writer, Function<String, Optional<E>> reader, CommandFactory<E> factory) {
+        return new CommandCodec<>(writer, reader, factory);
+    }
+
+    /**
+     * Codec for numbers of default precision, decoded into heap commands.
+     **/
+    public static CommandCodec<Number> forNumber() {
+        return CommandCodec.<Number>of(n -> n.getValue().toPlainString(), Number::of, CommandFactory.heap());
+    }
+
+    public void encode(Command<E> command, DataOutput out) throws IOException {
+        Opcode opcode = command.opcode();
+        if (opcode == Opcode.Custom)
+            throw new IllegalArgumentException("Custom command cannot be encoded");
+        out.writeByte(opcode.ordinal());
+        if (opcode == Opcode.Literal) {
+            out.writeUTF(writer.apply(command.apply().get()));
+            return;
+        }
+        for (Command<E> operand : command.undo())
+            encode(operand, out);
+    }
+
+    public Command<E> decode(DataInput in) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= Opcode.values().length)
+            throw new IOException("Invalid opcode: " + ordinal);
+        Opcode opcode = Opcode.valueOf(ordinal);
+        switch (opcode) {
+            case Literal:
+                String literal = in.readUTF();
+                return factory.literal(reader.apply(literal)
+                        .orElseThrow(() -> new IOException("Invalid literal: " + literal)));
+            case Custom:
+                throw new IOException("Custom command cannot be decoded");
+            default:
+                Command<E> left = decode(in);
+                return opcode.arity() == 1 ? factory.unary(opcode, left) : factory.binary(opcode, left, decode(in));
+        }
+    }
+
+    public void encodeResult(Either<Exception, E> result, DataOutput out) throws IOException {
+        if (result.isRight()) {
+            out.writeByte(VALUE);
+            out.writeUTF(writer.apply(result.get()));
+            return;
+        }
+        Exception e = result.getLeft();
+        if (e instanceof Failure && Failure.of(((Failure) e).getCode()).isPresent()) {
+            out.writeByte(FAILURE);
+            out.writeByte(((Failure) e).getCode().ordinal());
+            return;
+        }
+        out.writeByte(EXCEPTION);
+        out.writeUTF(e.getMessage() == null ? e.toString() : e.getMessage());
+    }
+
+    /*
+     * Exceptions other than preallocated failures come
+     * back as an ExecutionException with the same message.
+     */
+    public Either<Exception, E> decodeResult(DataInput in) throws IOException {
+        int status = in.readUnsignedByte();
+        switch (status) {
+            case VALUE:
+                String value = in.readUTF();
+                return Either.right(reader.apply(value)
+                        .orElseThrow(() -> new IOException("Invalid value: " + value)));
+            case FAILURE:
+                int ordinal = in.readUnsignedByte();
+                Failure.Code[] codes = Failure.Code.values();
+                Optional<Failure> failure = ordinal < codes.length ? Failure.of(codes[ordinal]) : Optional.empty();
+                return Either.left(failure.orElseThrow(() -> new IOException("Invalid failure code: " + ordinal)));
+            case EXCEPTION:
+                return Either.left(new ExecutionException(in.readUTF(), null));
+            default:
+                throw new IOException("Invalid result status: " + status);
+        }
+    }
+}
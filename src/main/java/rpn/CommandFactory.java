@@ -0,0 +1,625 @@
+package rpn;
+
+import io.vavr.control.Either;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Builds the nodes of command trees for the built-in operators,
+ * so that the node representation can be chosen independently
+ * of the registry, e.g. heap objects or an off-heap store.
+ **/
+public interface CommandFactory<E extends Operatable<E>> {
+    Command<E> literal(E value);
+    Command<E> unary(Opcode opcode, Command<E> operand);
+    Command<E> binary(Opcode opcode, Command<E> left, Command<E> right);
+
+    /**
+     * Node of a custom operator without an opcode, e.g. n!, cos, atan.
+     * Opaque (Custom) to the stores and codecs, the default is a heap node
+     * whatever the factory, holding operands built by it.
+     **/
+    default Command<E> unary(Function<E, E> operator, Command<E> operand) {
+        return new CustomUnary<>(operator, operand, false);
+    }
+
+    /**
+     * Node of a custom binary operator without an opcode, see unary(Function, Command).
+     **/
+    default Command<E> binary(BiFunction<E, E, E> operator, Command<E> left, Command<E> right) {
+        return new CustomBinary<>(operator, left, right, false);
+    }
+
+    /**
+     * Reduction of operands with an associative binary operator (+ or *),
+     * see Reduce. undo is what the node gives back on undo: its operands,
+     * followed by anything else it consumed.
+     **/
+    default Command<E> reduce(Opcode operator, List<Command<E>> operands, List<Command<E>> undo) {
+        return new Reduce<>(operator, operands, undo, false);
+    }
+
+    /**
+     * One heap object per node, of a final class per operator.
+     **/
+    static<E extends Operatable<E>> CommandFactory<E> heap() {
+        return new HeapFactory<>(false);
+    }
+
+    /**
+     * Heap nodes that cache their own result, in place of a
+     * CacheStrategy.get() wrapper, to be used with CacheStrategy.none().
+     *
+     * Results are published lock-free. The cheap operators (+, -, *) may
+     * be computed twice by racing threads, all of them then return the
+     * published result. The expensive ones (/, sqrt) are computed once,
+     * under the node's own monitor, only taken until the result is known.
+     * Transient failures are returned but not cached.
+     **/
+    static<E extends Operatable<E>> CommandFactory<E> memoized() {
+        return new HeapFactory<>(true);
+    }
+
+    final class HeapFactory<E extends Operatable<E>> implements CommandFactory<E> {
+        private final boolean memoized;
+
+        private HeapFactory(boolean memoized) {
+            this.memoized = memoized;
+        }
+
+        @Override
+        public Command<E> literal(E value) {
+            return new Literal<>(value);
+        }
+
+        @Override
+        public Command<E> unary(Opcode opcode, Command<E> operand) {
+            switch (opcode) {
+                case Sqrt: return new Sqrt<>(operand, memoized);
+                default: throw new IllegalArgumentException("Not a unary operator: " + opcode);
+            }
+        }
+
+        @Override
+        public Command<E> binary(Opcode opcode, Command<E> left, Command<E> right) {
+            switch (opcode) {
+                case Add: return new Add<>(left, right, memoized);
+                case Subtract: return new Sub<>(left, right, memoized);
+                case Multiply: return new Mul<>(left, right, memoized);
+                case Divide: return new Div<>(left, right, memoized);
+                default: throw new IllegalArgumentException("Not a binary operator: " + opcode);
+            }
+        }
+
+        @Override
+        public Command<E> unary(Function<E, E> operator, Command<E> operand) {
+            return new CustomUnary<>(operator, operand, memoized);
+        }
+
+        @Override
+        public Command<E> binary(BiFunction<E, E, E> operator, Command<E> left, Command<E> right) {
+            return new CustomBinary<>(operator, left, right, memoized);
+        }
+
+        @Override
+        public Command<E> reduce(Opcode operator, List<Command<E>> operands, List<Command<E>> undo) {
+            return new Reduce<>(operator, operands, undo, memoized);
+        }
+    }
+
+    /*
+     * The heap nodes. Each operator has its own final class calling the
+     * Operatable method directly, so that for a given operand type every
+     * call site in apply() is monomorphic and the JIT can inline the
+     * arithmetic, instead of going through a shared switch or a lambda.
+     */
+    final class Literal<E extends Operatable<E>> implements Command<E> {
+        private final Either<Exception, E> value;
+
+        private Literal(E value) {
+            this.value = Either.right(value);
+        }
+
+        @Override
+        public Either<Exception, E> apply() {
+            return value;
+        }
+
+        @Override
+        public List<Command<E>> undo() {
+            return Arrays.asList();
+        }
+
+        @Override
+        public int size() {
+            return 1;
+        }
+
+        @Override
+        public long retainedBytes() {
+            return 2 * OBJECT_BYTES + value.get().retainedBytes();
+        }
+
+        @Override
+        public Opcode opcode() {
+            return Opcode.Literal;
+        }
+    }
+
+    /*
+     * Result slot of the operator nodes: null until published,
+     * UNCACHED for nodes that do not memoize.
+     * Retained bytes are summed from the operands' once, at construction,
+     * so that stacks can keep a running total without walking the tree.
+     */
+    abstract class Node<E extends Operatable<E>> implements Command<E> {
+        private static final Object UNCACHED = new Object();
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Node, Object> RESULT =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Object.class, "result");
+
+        private volatile Object result;
+        private final long retainedBytes;
+
+        private Node(boolean memoized, long operandBytes) {
+            if (!memoized) RESULT.lazySet(this, UNCACHED);
+            this.retainedBytes = OBJECT_BYTES + (memoized ? RESULT_BYTES : 0) + operandBytes;
+        }
+
+        @Override
+        public final long retainedBytes() {
+            return retainedBytes;
+        }
+
+        /*
+         * The published result, null if there is none.
+         */
+        @SuppressWarnings("unchecked")
+        final Either<Exception, E> cached() {
+            Object r = result;
+            return r == UNCACHED ? null : (Either<Exception, E>) r;
+        }
+
+        final boolean memoizes() {
+            return result != UNCACHED;
+        }
+
+        /*
+         * Publishes a result unless one already was, returns the published one.
+         */
+        @SuppressWarnings("unchecked")
+        final Either<Exception, E> publish(Either<Exception, E> r) {
+            Object published = result;
+            if (published == UNCACHED || r.isLeft() && Failure.isTransient(r.getLeft())) return r;
+            if (published == null && RESULT.compareAndSet(this, null, r)) return r;
+            return (Either<Exception, E>) result;
+        }
+    }
+
+    final class Sqrt<E extends Operatable<E>> extends Node<E> {
+        private final Command<E> operand;
+        private final int size;
+
+        private Sqrt(Command<E> operand, boolean memoized) {
+            super(memoized, operand.retainedBytes());
+            this.operand = operand;
+            this.size = 1 + operand.size();
+        }
+
+        @Override
+        public Either<Exception, E> apply() {
+            Either<Exception, E> r = cached();
+            if (r != null) return r;
+            if (!memoizes()) return compute();
+            synchronized (this) {
+                r = cached();
+                return r != null ? r : publish(compute());
+            }
+        }
+
+        private Either<Exception, E> compute() {
+            Either<Exception, E> that = operand.apply();
+            if (that.isLeft()) return that;
+            Optional<Failure> exhausted = Budget.charge();
+            if (exhausted.isPresent()) return Either.left(exhausted.get());
+            try {
+                return Either.right(that.get().sqrt());
+            } catch (Exception e) {
+                return Either.left(e);
+            }
+        }
+
+        @Override
+        public List<Command<E>> undo() {
+            return Arrays.asList(operand);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Opcode opcode() {
+            return Opcode.Sqrt;
+        }
+    }
+
+    /*
+     * Operands and structure shared by the binary nodes,
+     * apply() stays in the final subclasses. The size is taken
+     * from the operands once, stacks read it on every push and pop.
+     */
+    abstract class Binary<E extends Operatable<E>> extends Node<E> {
+        final Command<E> left;
+        final Command<E> right;
+        private final int size;
+
+        private Binary(Command<E> left, Command<E> right, boolean memoized) {
+            super(memoized, left.retainedBytes() + right.retainedBytes());
+            this.left = left;
+            this.right = right;
+            this.size = 1 + left.size() + right.size();
+        }
+
+        @Override
+        public final List<Command<E>> undo() {
+            return Arrays.asList(left, right);
+        }
+
+        @Override
+        public final int size() {
+            return size;
+        }
+    }
+
+    final class Add<E extends Operatable<E>> extends Binary<E> {
+        private Add(Command<E> left, Command<E> right, boolean memoized) {
+            super(left, right, memoized);
+        }
+
+        @Override
+        public Either<Exception, E> apply() {
+            Either<Exception, E> cached = cached();
+            if (cached != null) return cached;
+            Either<Exception, E> l = left.apply();
+            if (l.isLeft()) return l;
+            Either<Exception, E> r = right.apply();
+            if (r.isLeft()) return r;
+            Optional<Failure> exhausted = Budget.charge();
+            if (exhausted.isPresent()) return Either.left(exhausted.get());
+            try {
+                return publish(Either.right(l.get().add(r.get())));
+            } catch (Exception e) {
+                return publish(Either.left(e));
+            }
+        }
+
+        @Override
+        public Opcode opcode() {
+            return Opcode.Add;
+        }
+    }
+
+    final class Sub<E extends Operatable<E>> extends Binary<E> {
+        private Sub(Command<E> left, Command<E> right, boolean memoized) {
+            super(left, right, memoized);
+        }
+
+        @Override
+        public Either<Exception, E> apply() {
+            Either<Exception, E> cached = cached();
+            if (cached != null) return cached;
+            Either<Exception, E> l = left.apply();
+            if (l.isLeft()) return l;
+            Either<Exception, E> r = right.apply();
+            if (r.isLeft()) return r;
+            Optional<Failure> exhausted = Budget.charge();
+            if (exhausted.isPresent()) return Either.left(exhausted.get());
+            try {
+                return publish(Either.right(l.get().substract(r.get())));
+            } catch (Exception e) {
+                return publish(Either.left(e));
+            }
+        }
+
+        @Override
+        public Opcode opcode() {
+            return Opcode.Subtract;
+        }
+    }
+
+    final class Mul<E extends Operatable<E>> extends Binary<E> {
+        private Mul(Command<E> left, Command<E> right, boolean memoized) {
+            super(left, right, memoized);
+        }
+
+        @Override
+        public Either<Exception, E> apply() {
+            Either<Exception, E> cached = cached();
+            if (cached != null) return cached;
+            Either<Exception, E> l = left.apply();
+            if (l.isLeft()) return l;
+            Either<Exception, E> r = right.apply();
+            if (r.isLeft()) return r;
+            Optional<Failure> exhausted = Budget.charge();
+            if (exhausted.isPresent()) return Either.left(exhausted.get());
+            try {
+                return publish(Either.right(l.get().multiply(r.get())));
+            } catch (Exception e) {
+                return publish(Either.left(e));
+            }
+        }
+
+        @Override
+        public Opcode opcode() {
+            return Opcode.Multiply;
+        }
+    }
+
+    final class Div<E extends Operatable<E>> extends Binary<E> {
+        private Div(Command<E> left, Command<E> right, boolean memoized) {
+            super(left, right, memoized);
+        }
+
+        @Override
+        public Either<Exception, E> apply() {
+            Either<Exception, E> r = cached();
+            if (r != null) return r;
+            if (!memoizes()) return compute();
+            synchronized (this) {
+                r = cached();
+                return r != null ? r : publish(compute());
+            }
+        }
+
+        private Either<Exception, E> compute() {
+            Either<Exception, E> l = left.apply();
+            if (l.isLeft()) return l;
+            Either<Exception, E> r = right.apply();
+            if (r.isLeft()) return r;
+            Optional<Failure> exhausted = Budget.charge();
+            if (exhausted.isPresent()) return Either.left(exhausted.get());
+            try {
+                return Either.right(l.get().divide(r.get()));
+            } catch (Exception e) {
+                return Either.left(e);
+            }
+        }
+
+        @Override
+        public Opcode opcode() {
+            return Opcode.Divide;
+        }
+    }
+
+    /*
+     * Custom operators are computed once when memoized, like the
+     * expensive built-in ones, their cost is unknown.
+     */
+    final class CustomUnary<E extends Operatable<E>> extends Node<E> {
+        private final Function<E, E> operator;
+        private final Command<E> operand;
+        private final int size;
+
+        private CustomUnary(Function<E, E> operator, Command<E> operand, boolean memoized) {
+            super(memoized, operand.retainedBytes());
+            this.operator = operator;
+            this.operand = operand;
+            this.size = 1 + operand.size();
+        }
+
+        @Override
+        public Either<Exception, E> apply() {
+            Either<Exception, E> r = cached();
+            if (r != null) return r;
+            if (!memoizes()) return compute();
+            synchronized (this) {
+                r = cached();
+                return r != null ? r : publish(compute());
+            }
+        }
+
+        private Either<Exception, E> compute() {
+            Either<Exception, E> that = operand.apply();
+            if (that.isLeft()) return that;
+            Optional<Failure> exhausted = Budget.charge();
+            if (exhausted.isPresent()) return Either.left(exhausted.get());
+            try {
+                return Either.right(operator.apply(that.get()));
+            } catch (Exception e) {
+                return Either.left(e);
+            }
+        }
+
+        @Override
+        public List<Command<E>> undo() {
+            return Arrays.asList(operand);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    final class CustomBinary<E extends Operatable<E>> extends Binary<E> {
+        private final BiFunction<E, E, E> operator;
+
+        private CustomBinary(BiFunction<E, E, E> operator, Command<E> left, Command<E> right, boolean memoized) {
+            super(left, right, memoized);
+            this.operator = operator;
+        }
+
+        @Override
+        public Either<Exception, E> apply() {
+            Either<Exception, E> r = cached();
+            if (r != null) return r;
+            if (!memoizes()) return compute();
+            synchronized (this) {
+                r = cached();
+                return r != null ? r : publish(compute());
+            }
+        }
+
+        private Either<Exception, E> compute() {
+            Either<Exception, E> l = left.apply();
+            if (l.isLeft()) return l;
+            Either<Exception, E> r = right.apply();
+            if (r.isLeft()) return r;
+            Optional<Failure> exhausted = Budget.charge();
+            if (exhausted.isPresent()) return Either.left(exhausted.get());
+            try {
+                return Either.right(operator.apply(l.get(), r.get()));
+            } catch (Exception e) {
+                return Either.left(e);
+            }
+        }
+    }
+
+    /*
+     * N-ary reduction, e.g. the sum of a run of stack entries, as one node
+     * instead of a left-deep chain of binary nodes.
+     *
+     * Operands are combined as a balanced tree: runs are halved down to
+     * leaves of LEAF operands folded in order, and halves longer than a
+     * leaf are evaluated in parallel on the common ForkJoin pool. The shape
+     * doesn't depend on the parallelism, so a product, truncated at every
+     * step, comes out the same on any number of cores (it may differ in the
+     * last digits of precision from a chain of "*"). The first failure in
+     * stack order is returned. Evaluation stays on the calling thread while
+     * a Budget or a traced Profiler is installed there, so that they see
+     * every node.
+     *
+     * Opaque (Custom) like the registry's custom operators:
+     * CommandCodec cannot encode it, and a MappedStack keeps the
+     * entries holding one on the heap.
+     */
+    final class Reduce<E extends Operatable<E>> extends Node<E> {
+        private static final int LEAF = 1024;
+
+        private final Opcode operator;
+        private final List<Command<E>> operands;
+        private final List<Command<E>> undo;
+        private final int size;
+
+        private Reduce(Opcode operator, List<Command<E>> operands, List<Command<E>> undo, boolean memoized) {
+            super(memoized, retainedBytes(operands, undo));
+            if (operator != Opcode.Add && operator != Opcode.Multiply)
+                throw new IllegalArgumentException("Not an associative operator: " + operator);
+            if (operands.isEmpty())
+                throw new IllegalArgumentException("Nothing to reduce");
+            this.operator = operator;
+            this.operands = new ArrayList<>(operands);
+            this.undo = undo == operands ? this.operands : new ArrayList<>(undo);
+            int size = 1;
+            for (Command<E> operand : operands)
+                size += operand.size();
+            this.size = size;
+        }
+
+        @Override
+        public Either<Exception, E> apply() {
+            Either<Exception, E> r = cached();
+            if (r != null) return r;
+            if (!memoizes()) return compute();
+            synchronized (this) {
+                r = cached();
+                return r != null ? r : publish(compute());
+            }
+        }
+
+        private Either<Exception, E> compute() {
+            if (operands.size() <= LEAF || Budget.bounded() || Profiler.tracing())
+                return reduce(0, operands.size(), false);
+            return ForkJoinPool.commonPool().invoke(new Half(0, operands.size()));
+        }
+
+        private Either<Exception, E> reduce(int from, int to, boolean parallel) {
+            if (to - from <= LEAF) return fold(from, to);
+            int middle = (from + to) >>> 1;
+            Either<Exception, E> left, right;
+            if (parallel) {
+                Half half = new Half(middle, to);
+                half.fork();
+                left = reduce(from, middle, true);
+                right = half.join();
+            } else {
+                left = reduce(from, middle, false);
+                right = reduce(middle, to, false);
+            }
+            if (left.isLeft()) return left;
+            if (right.isLeft()) return right;
+            return combine(left.get(), right.get());
+        }
+
+        private Either<Exception, E> fold(int from, int to) {
+            Either<Exception, E> result = operands.get(from).apply();
+            for (int i = from + 1; i < to && result.isRight(); i++) {
+                Either<Exception, E> next = operands.get(i).apply();
+                result = next.isLeft() ? next : combine(result.get(), next.get());
+            }
+            return result;
+        }
+
+        private Either<Exception, E> combine(E left, E right) {
+            Optional<Failure> exhausted = Budget.charge();
+            if (exhausted.isPresent()) return Either.left(exhausted.get());
+            try {
+                return Either.right(operator.apply(left, right));
+            } catch (Exception e) {
+                return Either.left(e);
+            }
+        }
+
+        /*
+         * The operands, anything else given back on undo, and the lists.
+         */
+        private static<E> long retainedBytes(List<Command<E>> operands, List<Command<E>> undo) {
+            long bytes = 0;
+            for (Command<E> command : undo)
+                bytes += command.retainedBytes() + Integer.BYTES;
+            if (undo != operands)
+                bytes += OBJECT_BYTES + operands.size() * (long) Integer.BYTES;
+            return bytes + 2 * OBJECT_BYTES;
+        }
+
+        @Override
+        public List<Command<E>> undo() {
+            return undo;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /*
+         * Operands from (inclusive) to (exclusive), forked off a reduction.
+         */
+        private final class Half extends RecursiveTask<Either<Exception, E>> {
+            private static final long serialVersionUID = 1L;
+
+            private final int from;
+            private final int to;
+
+            private Half(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected Either<Exception, E> compute() {
+                return reduce(from, to, true);
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package rpn;
 
 import io.vavr.control.Either;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -19,8 +20,10 @@ import java.util.function.Function;
 public final class CommandRegistry<E extends Operatable<E>> {
     private HashMap<String, CommandDefinition> operatorRegistry;
     private Function<String, Optional<E>> operatableProvider;
+    private CommandFactory<E> commandFactory;
 
-    private CommandRegistry() {
+    private CommandRegistry(CommandFactory<E> commandFactory) {
+        this.commandFactory = commandFactory;
         operatorRegistry = new HashMap<>();
         register();
     }
@@ -29,36 +32,14 @@ public final class CommandRegistry<E extends Operatable<E>> {
      * Registers all available stack and number operators.
      **/
     private void register() {
-        operatorRegistry.put("*", binaryCommandDefinition(new BiFunction<E, E, E>() {
-            @Override
-            public E apply(E e, E e2) {
-                return e.multiply(e2);
-            }
-        }));
-        operatorRegistry.put("+", binaryCommandDefinition(new BiFunction<E, E, E>() {
-            @Override
-            public E apply(E e, E e2) {
-                return e.add(e2);
-            }
-        }));
-        operatorRegistry.put("/", binaryCommandDefinition(new BiFunction<E, E, E>() {
-            @Override
-            public E apply(E e, E e2) {
-                return e.divide(e2);
-            }
-        }));
-        operatorRegistry.put("-", binaryCommandDefinition(new BiFunction<E, E, E>() {
-            @Override
-            public E apply(E e, E e2) {
-                return e.substract(e2);
-            }
-        }));
-        operatorRegistry.put("sqrt", unaryCommandDefinition(new Function<E, E>() {
-            @Override
-            public E apply(E e) {
-                return e.sqrt();
-            }
-        }));
+        operatorRegistry.put("*", binaryCommandDefinition(Opcode.Multiply));
+        operatorRegistry.put("+", binaryCommandDefinition(Opcode.Add));
+        operatorRegistry.put("/", binaryCommandDefinition(Opcode.Divide));
+        operatorRegistry.put("-", binaryCommandDefinition(Opcode.Subtract));
+        operatorRegistry.put("sqrt", unaryCommandDefinition(Opcode.Sqrt));
+        operatorRegistry.put("sum", reductionCommandDefinition("sum", Opcode.Add));
+        operatorRegistry.put("prod", reductionCommandDefinition("prod", Opcode.Multiply));
+        operatorRegistry.put("sumn", countedReductionCommandDefinition("sumn", Opcode.Add));
         operatorRegistry.put("clear", new CommandDefinition(ArgSize.All, new Function<List<Command<E>>, List<Command<E>>>() {
             @Override
             public List<Command<E>> apply(List<Command<E>> commands) {
@@ -77,7 +58,16 @@ public final class CommandRegistry<E extends Operatable<E>> {
      * Factory method for new instance of registry
      **/
     public static<O extends Operatable<O>> CommandRegistry<O> getInstance(Function<String, Optional<O>> operatableProvider) {
-        CommandRegistry<O> registry = new CommandRegistry<>();
+        return getInstance(operatableProvider, CommandFactory.heap());
+    }
+
+    /**
+     * Factory method for new instance of registry building
+     * the built-in operators with the given command factory.
+     **/
+    public static<O extends Operatable<O>> CommandRegistry<O> getInstance(
+            Function<String, Optional<O>> operatableProvider, CommandFactory<O> commandFactory) {
+        CommandRegistry<O> registry = new CommandRegistry<>(commandFactory);
         registry.operatableProvider = operatableProvider;
         return registry;
     }
@@ -95,82 +85,126 @@ public final class CommandRegistry<E extends Operatable<E>> {
             return operatableProvider.apply(elementOrOperator).map( e -> elementCommandDefinition(e));
     }
 
+    /*
+     * A literal built by the registry's factory, e.g. to stand for an evaluated entry.
+     */
+    Command<E> literal(E value) {
+        return commandFactory.literal(value);
+    }
+
     /**
      * Helper function to build a command definition
-     * for binary operator, e.g. *, /, +, -.
+     * for built-in binary operator, e.g. *, /, +, -.
+     **/
+    private CommandDefinition binaryCommandDefinition(Opcode opcode) {
+        return new CommandDefinition(ArgSize.Two, new Function<List<Command<E>>, List<Command<E>>>() {
+            @Override
+            public List<Command<E>> apply(List<Command<E>> commands) {
+                return Arrays.asList(commandFactory.binary(opcode, commands.get(0), commands.get(1)));
+            }
+        });
+    }
+
+    /**
+     * Helper function to build a command definition
+     * for built-in unary operator, e.g. sqrt.
+     **/
+    private CommandDefinition unaryCommandDefinition(Opcode opcode) {
+        return new CommandDefinition(ArgSize.One, new Function<List<Command<E>>, List<Command<E>>>() {
+            @Override
+            public List<Command<E>> apply(List<Command<E>> commands) {
+                return Arrays.asList(commandFactory.unary(opcode, commands.get(0)));
+            }
+        });
+    }
+
+    /**
+     * Helper function to build a command definition
+     * for a reduction of the whole stack, e.g. sum, prod.
+     **/
+    private CommandDefinition reductionCommandDefinition(String operator, Opcode opcode) {
+        return new CommandDefinition(ArgSize.All, new Function<List<Command<E>>, List<Command<E>>>() {
+            @Override
+            public List<Command<E>> apply(List<Command<E>> commands) {
+                if (commands.isEmpty())
+                    throw Failure.insufficientParameter(operator, 1);
+                return Arrays.asList(commandFactory.reduce(opcode, commands, commands));
+            }
+        });
+    }
+
+    /**
+     * Helper function to build a command definition for a reduction
+     * of the top N entries, N being popped off the top, e.g. sumn.
+     * Entries below those N are handed back untouched.
+     **/
+    private CommandDefinition countedReductionCommandDefinition(String operator, Opcode opcode) {
+        return new CommandDefinition(ArgSize.All, new Function<List<Command<E>>, List<Command<E>>>() {
+            @Override
+            public List<Command<E>> apply(List<Command<E>> commands) {
+                if (commands.isEmpty())
+                    throw Failure.insufficientParameter(operator, 1);
+                int top = commands.size() - 1;
+                Command<E> count = commands.get(top);
+                int n = count(count);
+                if (n < 1)
+                    throw Failure.invalidParameter(operator, position(commands));
+                if (n > top)
+                    throw Failure.insufficientParameter(operator, position(commands));
+                List<Command<E>> operands = commands.subList(top - n, top);
+                List<Command<E>> undo = new ArrayList<>(operands);
+                undo.add(count);
+                List<Command<E>> result = new ArrayList<>(commands.subList(0, top - n));
+                result.add(commandFactory.reduce(opcode, operands, undo));
+                return result;
+            }
+        });
+    }
+
+    /*
+     * The value of a count entry, -1 unless it is a literal holding a
+     * non-negative integer. Only literals are taken, so that nothing is
+     * evaluated at push time.
+     */
+    private static<E extends Operatable<E>> int count(Command<E> count) {
+        if (count.opcode() != Opcode.Literal) return -1;
+        Either<Exception, E> value = count.apply();
+        if (value.isLeft()) return -1;
+        return Math.max(-1, value.get().intValueExact().orElse(-1));
+    }
+
+    /*
+     * Position of an operator pushed on top of commands.
+     */
+    private static<E extends Operatable<E>> int position(List<Command<E>> commands) {
+        int position = 1;
+        for (Command<E> command : commands)
+            position += command.size();
+        return position;
+    }
+
+    /**
+     * Helper function to build a command definition
+     * for custom binary operator without an opcode.
      **/
     private CommandDefinition binaryCommandDefinition(BiFunction<E, E, E> biOperator) {
-        return new CommandDefinition(
-                ArgSize.Two,
-//                enableCache ? ExecutionStratagy.Cached : ExecutionStratagy.None,
-                new Function<List<Command<E>>, List<Command<E>>>() {
+        return new CommandDefinition(ArgSize.Two, new Function<List<Command<E>>, List<Command<E>>>() {
             @Override
             public List<Command<E>> apply(List<Command<E>> commands) {
-                Command<E> left = commands.get(0);
-                Command<E> right = commands.get(1);
-                return Arrays.asList(new Command<E>() {
-                    @Override
-                    public Either<Exception, E> apply() {
-                        Either<Exception, E> leftEither = left.apply();
-                        if (leftEither.isLeft()) return leftEither;
-                        Either<Exception, E> rightEither = right.apply();
-                        if (rightEither.isLeft()) return rightEither;
-                        try {
-                            E result = biOperator.apply(leftEither.get(), rightEither.get());
-                            return Either.right(result);
-                        } catch (Exception e) {
-                            return Either.left(e);
-                        }
-                    }
-
-                    @Override
-                    public List<Command<E>> undo() {
-                        return Arrays.asList(left, right);
-                    }
-
-                    @Override
-                    public int size() {
-                        return 1 + left.size() + right.size();
-                    }
-                });
+                return Arrays.asList(commandFactory.binary(biOperator, commands.get(0), commands.get(1)));
             }
         });
     }
 
     /**
      * Helper function to build a command definition
-     * for unary operator, e.g. n!, sqrt, cos, atan.
+     * for custom unary operator without an opcode, e.g. n!, cos, atan.
      **/
     private CommandDefinition unaryCommandDefinition(Function<E, E> operator) {
-        return new CommandDefinition(
-                ArgSize.One,
-//                enableCache ? ExecutionStratagy.Cached : ExecutionStratagy.None,
-                new Function<List<Command<E>>, List<Command<E>>>() {
+        return new CommandDefinition(ArgSize.One, new Function<List<Command<E>>, List<Command<E>>>() {
             @Override
             public List<Command<E>> apply(List<Command<E>> commands) {
-                return Arrays.asList(new Command<E>() {
-                    @Override
-                    public Either<Exception, E> apply() {
-                        Either<Exception, E> that = commands.get(0).apply();
-                        if (that.isLeft()) return that;
-                        try {
-                            E result = operator.apply(that.get());
-                            return Either.right(result);
-                        } catch (Exception e) {
-                            return Either.left(e);
-                        }
-                    }
-
-                    @Override
-                    public List<Command<E>> undo() {
-                        return commands;
-                    }
-
-                    @Override
-                    public int size() {
-                        return 1 + commands.get(0).size();
-                    }
-                });
+                return Arrays.asList(commandFactory.unary(operator, commands.get(0)));
             }
         });
     }
@@ -183,25 +217,11 @@ public final class CommandRegistry<E extends Operatable<E>> {
         return new CommandDefinition(ArgSize.Zero, new Function<List<Command<E>>, List<Command<E>>>() {
             @Override
             public List<Command<E>> apply(List<Command<E>> commands) {
-                return Arrays.asList(new Command<E>() {
-                    @Override
-                    public Either<Exception, E> apply() {
-                        return Either.right(elem);
-                    }
-
-                    @Override
-                    public List<Command<E>> undo() {
-                        return Arrays.asList();
-                    }
-
-                    @Override
-                    public int size() {
-                        return 1;
-                    }
-                });
+                return Arrays.asList(commandFactory.literal(elem));
             }
         });
     }
+
     /*
      * A command definition defines the profile of a command,
      * i.e. what to do about a command, including the command function,
@@ -0,0 +1,258 @@
+package rpn;
+
+import io.vavr.control.Either;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Evaluates stacks across worker processes on the same machine.
+ *
+ * The coordinator starts its workers as child JVMs on the current class
+ * path; they connect back over loopback sockets and exchange commands
+ * and results in the CommandCodec format. The entries of a stack are
+ * independent, each one becomes a job; an entry much larger than its
+ * share of the stack is split into its operand subtrees, and the
+ * operator over them is applied locally once they are back.
+ *
+ * Every worker has a thread pulling jobs from a shared queue, a batch
+ * at a time, so faster workers take more of them. When a worker dies
+ * its unanswered jobs go back to the queue; once none are left, the
+ * remaining jobs are evaluated locally. Results are merged back in
+ * stack order. A worker that hangs without dying is not detected.
+ **/
+public final class Coordinator<E extends Operatable<E>> implements Closeable {
+    private static final int BATCH = 32;
+    private static final int CONNECT_TIMEOUT_MILLIS = 30_000;
+    // entries above stack size / (workers * SPLIT_FACTOR) are split
+    private static final int SPLIT_FACTOR = 4;
+
+    private final CommandCodec<E> codec;
+    private final List<Process> processes = new ArrayList<>();
+    private final List<Connection> connections = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger live = new AtomicInteger();
+    private volatile boolean closed;
+
+    private Coordinator(CommandCodec<E> codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Coordinator of numbers, with workers running Worker.main.
+     **/
+    public static Coordinator<Number> forNumber(int workers) throws IOException {
+        return newInstance(workers, CommandCodec.forNumber(), Worker.class);
+    }
+
+    /**
+     * Starts the workers and waits for all of them to connect.
+     * workerMain is called with the coordinator port followed by
+     * workerArgs, and is expected to call Worker.serve().
+     **/
+    public static<E extends Operatable<E>> Coordinator<E> newInstance(
+            int workers, CommandCodec<E> codec, Class<?> workerMain, String... workerArgs) throws IOException {
+        if (workers < 1) throw new IllegalArgumentException("At least one worker is required");
+        Coordinator<E> coordinator = new Coordinator<>(codec);
+        try (ServerSocket server = new ServerSocket(0, workers, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            List<String> command = new ArrayList<>(Arrays.asList(
+                    System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                    "-cp", System.getProperty("java.class.path"),
+                    workerMain.getName(), Integer.toString(server.getLocalPort())));
+            command.addAll(Arrays.asList(workerArgs));
+            for (int i = 0; i < workers; i++)
+                coordinator.processes.add(new ProcessBuilder(command).inheritIO().start());
+            for (int i = 0; i < workers; i++)
+                coordinator.connections.add(coordinator.new Connection(server.accept()));
+        } catch (IOException e) {
+            coordinator.close();
+            throw e;
+        }
+        coordinator.live.set(workers);
+        for (int i = 0; i < workers; i++) {
+            Thread thread = new Thread(coordinator.connections.get(i), "rpn-coordinator-" + i);
+            thread.setDaemon(true);
+            coordinator.threads.add(thread);
+            thread.start();
+        }
+        return coordinator;
+    }
+
+    /*
+     * Number of workers still connected.
+     */
+    public int liveWorkers() {
+        return live.get();
+    }
+
+    public List<Either<Exception, E>> evaluate(Stack<Command<E>> stack) {
+        return evaluate(stack.allElements());
+    }
+
+    /**
+     * Evaluates the entries across the workers, results in entry order.
+     **/
+    public List<Either<Exception, E>> evaluate(List<Command<E>> entries) {
+        if (closed) throw new IllegalStateException("Coordinator is closed");
+        int total = entries.stream().mapToInt(Command::size).sum();
+        int threshold = Math.max(1, total / (connections.size() * SPLIT_FACTOR));
+        List<CompletableFuture<Either<Exception, E>>> results = entries.stream()
+                .map(c -> plan(c, threshold))
+                .collect(Collectors.toList());
+        if (live.get() == 0)
+            drainLocally();
+        return results.stream().map(CompletableFuture::join).collect(Collectors.toList());
+    }
+
+    /*
+     * Splits a command larger than the threshold into its operands,
+     * everything else is queued for a worker. Literals are not worth
+     * a round trip and custom commands cannot be sent.
+     */
+    private CompletableFuture<Either<Exception, E>> plan(Command<E> command, int threshold) {
+        Opcode opcode = command.opcode();
+        if (opcode == Opcode.Literal || opcode == Opcode.Custom)
+            return CompletableFuture.completedFuture(command.apply());
+        if (command.size() <= threshold) {
+            Job job = new Job(command);
+            queue.add(job);
+            return job.result;
+        }
+        List<CompletableFuture<Either<Exception, E>>> operands = command.undo().stream()
+                .map(c -> plan(c, threshold))
+                .collect(Collectors.toList());
+        return CompletableFuture.allOf(operands.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> combine(opcode, operands.stream()
+                        .map(CompletableFuture::join)
+                        .collect(Collectors.toList())));
+    }
+
+    private Either<Exception, E> combine(Opcode opcode, List<Either<Exception, E>> operands) {
+        for (Either<Exception, E> operand : operands)
+            if (operand.isLeft()) return operand;
+        try {
+            return Either.right(opcode.arity() == 1
+                    ? opcode.apply(operands.get(0).get())
+                    : opcode.apply(operands.get(0).get(), operands.get(1).get()));
+        } catch (Exception e) {
+            return Either.left(e);
+        }
+    }
+
+    private void drainLocally() {
+        Job job;
+        while ((job = queue.poll()) != null)
+            job.result.complete(job.command.apply());
+    }
+
+    /**
+     * Disconnects and stops all workers, pending jobs are evaluated locally.
+     **/
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread thread : threads)
+            thread.interrupt();
+        for (Connection connection : connections)
+            connection.close();
+        for (Process process : processes)
+            process.destroy();
+        drainLocally();
+    }
+
+    private final class Job {
+        private final Command<E> command;
+        private final CompletableFuture<Either<Exception, E>> result = new CompletableFuture<>();
+
+        private Job(Command<E> command) {
+            this.command = command;
+        }
+    }
+
+    /*
+     * Sends batches of jobs to one worker and completes them
+     * with the answers, which come back in request order.
+     */
+    private final class Connection implements Runnable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream scratch = new ByteArrayOutputStream();
+        private final DataOutputStream encoder = new DataOutputStream(scratch);
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        @Override
+        public void run() {
+            List<Job> batch = new ArrayList<>(BATCH);
+            try {
+                while (!closed) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, BATCH - 1);
+                    for (Iterator<Job> iter = batch.iterator(); iter.hasNext(); ) {
+                        Job job = iter.next();
+                        scratch.reset();
+                        try {
+                            codec.encode(job.command, encoder);
+                        } catch (IllegalArgumentException e) {
+                            // a custom command somewhere in the tree
+                            job.result.complete(job.command.apply());
+                            iter.remove();
+                            continue;
+                        }
+                        scratch.writeTo(out);
+                    }
+                    out.flush();
+                    for (Job job : batch)
+                        job.result.complete(codec.decodeResult(in));
+                    batch.clear();
+                }
+            } catch (IOException | RuntimeException e) {
+                // the worker is gone, or its answer could not be read
+                close();
+                for (Job job : batch)
+                    if (!job.result.isDone()) queue.add(job);
+                // counted out once its jobs are back in the queue, so that the
+                // thread that sees no live worker left finds all of them
+                live.decrementAndGet();
+                if (live.get() == 0)
+                    drainLocally();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already disconnected
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package rpn;
+
+import java.util.Optional;
+
+/**
+ * Lightweight error returned (or thrown) on failure paths.
+ *
+ * Filling in a stack trace costs far more than the failed operation
+ * itself, so a Failure never captures one. It carries a code and the
+ * position of the offending token, and only builds its message when
+ * asked. Failures without a position are preallocated.
+ **/
+public final class Failure extends RuntimeException {
+    public enum Code {
+        UnknownToken, InsufficientParameter, DivisionByZero, NegativeSqrt, Timeout, BudgetExceeded, Cancelled,
+        InvalidParameter, MemoryLimitExceeded
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    public static final Failure DIVISION_BY_ZERO = new Failure(Code.DivisionByZero, -1, null);
+    public static final Failure NEGATIVE_SQRT = new Failure(Code.NegativeSqrt, -1, null);
+    public static final Failure TIMEOUT = new Failure(Code.Timeout, -1, null);
+    public static final Failure BUDGET_EXCEEDED = new Failure(Code.BudgetExceeded, -1, null);
+    public static final Failure CANCELLED = new Failure(Code.Cancelled, -1, null);
+
+    private final Code code;
+    private final int position;
+    private final String token;
+    private String message;
+
+    private Failure(Code code, int position, String token) {
+        super(null, null, false, false);
+        this.code = code;
+        this.position = position;
+        this.token = token;
+    }
+
+    public static Failure unknownToken(String token, int position) {
+        return new Failure(Code.UnknownToken, position, token);
+    }
+
+    public static Failure insufficientParameter(String operator, int position) {
+        return new Failure(Code.InsufficientParameter, position, operator);
+    }
+
+    public static Failure invalidParameter(String operator, int position) {
+        return new Failure(Code.InvalidParameter, position, operator);
+    }
+
+    public static Failure memoryLimitExceeded(String token, int position) {
+        return new Failure(Code.MemoryLimitExceeded, position, token);
+    }
+
+    /*
+     * The preallocated failure of a code without a position, if any.
+     */
+    static Optional<Failure> of(Code code) {
+        switch (code) {
+            case DivisionByZero:
+                return Optional.of(DIVISION_BY_ZERO);
+            case NegativeSqrt:
+                return Optional.of(NEGATIVE_SQRT);
+            case Timeout:
+                return Optional.of(TIMEOUT);
+            case BudgetExceeded:
+                return Optional.of(BUDGET_EXCEEDED);
+            case Cancelled:
+                return Optional.of(CANCELLED);
+            default:
+                return Optional.empty();
+        }
+    }
+
+    public Code getCode() { return code; }
+
+    /*
+     * Transient failures come from the evaluation limits rather than the
+     * expression, a retry may succeed. They must never be cached.
+     */
+    public boolean isTransient() {
+        return code == Code.Timeout || code == Code.BudgetExceeded || code == Code.Cancelled;
+    }
+
+    public static boolean isTransient(Exception e) {
+        return e instanceof Failure && ((Failure) e).isTransient();
+    }
+
+    /*
+     * Position of the token in the current stack, -1 if not applicable.
+     */
+    public int getPosition() { return position; }
+
+    @Override
+    public String getMessage() {
+        if (message == null)
+            message = format();
+        return message;
+    }
+
+    private String format() {
+        switch (code) {
+            case UnknownToken:
+                return "Unknown element or operator: " + token;
+            case InsufficientParameter:
+                return "Operator '" + token + "' (position " + position + "), insufficient parameter";
+            case DivisionByZero:
+                return "Division by zero";
+            case NegativeSqrt:
+                return "Square root of negative number";
+            case Timeout:
+                return "Evaluation deadline exceeded";
+            case BudgetExceeded:
+                return "Evaluation node budget exceeded";
+            case Cancelled:
+                return "Evaluation cancelled";
+            case InvalidParameter:
+                return "Operator '" + token + "' (position " + position + "), invalid parameter";
+            case MemoryLimitExceeded:
+                return "Element '" + token + "' (position " + position + "), memory limit exceeded";
+            default:
+                return code.name();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package rpn;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Optional;
+import java.util.OptionalInt;
+
+/**
+ * Implementation of the operatable interface with the same
+ * precision and ROUND_DOWN rules as Number, but without
+ * paying for BigDecimal on every operation.
+ *
+ * Immutable. The value is held as a scaled long (unscaled * 10^-scale)
+ * while it is exactly representable, and promoted to BigDecimal
+ * on overflow. Results are identical to Number.
+ **/
+public class HybridNumber implements Operatable<HybridNumber> {
+    private static int DEFAULT_PRECISION = 15;
+    private static int DEFAULT_DISPLAY_PRECISION = 10;
+    private static int DEFAULT_ROUNDING = BigDecimal.ROUND_DOWN;
+    private static final long[] POWERS_OF_TEN = new long[19];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private int precision;
+    private int displayPrecision;
+    // valid when big is null, 0 <= scale <= precision
+    private long unscaled;
+    private int scale;
+    private BigDecimal big;
+
+    private HybridNumber() {}
+
+    /**
+     * Factory method with default calculation precision
+     * and display precision.
+     *
+     * Returns Optional.Empty if the input is an invalid number.
+     **/
+    public static Optional<HybridNumber> of(String value) {
+        return of(value, DEFAULT_PRECISION, DEFAULT_DISPLAY_PRECISION);
+    }
+
+    /**
+     * Factory method with input calculation precision
+     * and display precision.
+     *
+     * Plain decimal literals that fit a long are parsed directly,
+     * anything else goes through BigDecimal like Number.of().
+     *
+     * Returns Optional.Empty if the input is an invalid number.
+     **/
+    public static Optional<HybridNumber> of(String value, int precision, int displayPrecision) {
+        if (!Number.isDecimal(value)) return Optional.empty();
+        HybridNumber n = parse(value, precision, displayPrecision);
+        if (n != null) return Optional.of(n);
+        try {
+            return Optional.of(of(new BigDecimal(value), precision, displayPrecision));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Factory method with input BigDecimal, calculation precision
+     * and display precision.
+     **/
+    public static HybridNumber of(BigDecimal value, int precision, int displayPrecision) {
+        HybridNumber n = new HybridNumber();
+        n.precision = precision;
+        n.displayPrecision = displayPrecision;
+        BigDecimal scaled = value.setScale(precision, DEFAULT_ROUNDING);
+        if (precision < POWERS_OF_TEN.length && scaled.unscaledValue().bitLength() < 64)
+            n.setCompact(scaled.unscaledValue().longValue(), precision);
+        else
+            n.big = scaled;
+        return n;
+    }
+
+    /*
+     * Parses [-]digits[.digits], returns null for any other
+     * format or when the value doesn't fit a long.
+     */
+    private static HybridNumber parse(String value, int precision, int displayPrecision) {
+        if (precision >= POWERS_OF_TEN.length) return null;
+        int i = 0, length = value.length();
+        boolean negative = length > 0 && value.charAt(0) == '-';
+        if (negative) i++;
+        long unscaled = 0;
+        int scale = -1, digits = 0, significant = 0;
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '.') {
+                if (scale >= 0) return null;
+                scale = 0;
+            } else if (c >= '0' && c <= '9') {
+                digits++;
+                // ROUND_DOWN: fraction digits beyond precision are dropped
+                if (scale >= precision) continue;
+                if (scale >= 0) scale++;
+                if (significant > 0 || c != '0') significant++;
+                if (significant > 18) return null;
+                unscaled = unscaled * 10 + (c - '0');
+            } else {
+                return null;
+            }
+        }
+        if (digits == 0) return null;
+        HybridNumber n = new HybridNumber();
+        n.precision = precision;
+        n.displayPrecision = displayPrecision;
+        n.setCompact(negative ? -unscaled : unscaled, Math.max(scale, 0));
+        return n;
+    }
+
+    /*
+     * Drops trailing fraction zeros so that later operations
+     * have more headroom before overflow.
+     */
+    private void setCompact(long unscaled, int scale) {
+        while (scale > 0 && unscaled % 10 == 0) {
+            unscaled /= 10;
+            scale--;
+        }
+        this.unscaled = unscaled;
+        this.scale = scale;
+    }
+
+    public BigDecimal getValue() {
+        return big != null ? big : BigDecimal.valueOf(unscaled, scale).setScale(precision);
+    }
+
+    /*
+     * Whether the value is still held as a long.
+     */
+    public boolean isCompact() {
+        return big == null;
+    }
+
+    @Override
+    public HybridNumber add(HybridNumber that) {
+        if (isCompact() && that.isCompact()) {
+            try {
+                int s = Math.max(this.scale, that.scale);
+                return compact(Math.addExact(this.rescale(s), that.rescale(s)), s);
+            } catch (ArithmeticException overflow) {
+                // promote
+            }
+        }
+        return copy(this.getValue().add(that.getValue()));
+    }
+
+    @Override
+    public HybridNumber substract(HybridNumber that) {
+        if (isCompact() && that.isCompact()) {
+            try {
+                int s = Math.max(this.scale, that.scale);
+                return compact(Math.subtractExact(this.rescale(s), that.rescale(s)), s);
+            } catch (ArithmeticException overflow) {
+                // promote
+            }
+        }
+        return copy(this.getValue().subtract(that.getValue()));
+    }
+
+    @Override
+    public HybridNumber multiply(HybridNumber that) {
+        if (isCompact() && that.isCompact()) {
+            try {
+                long product = Math.multiplyExact(this.unscaled, that.unscaled);
+                int s = this.scale + that.scale;
+                // long division truncates toward zero, same as ROUND_DOWN
+                if (s > precision)
+                    return compact(product / POWERS_OF_TEN[s - precision], precision);
+                return compact(product, s);
+            } catch (ArithmeticException overflow) {
+                // promote
+            }
+        }
+        return copy(this.getValue().multiply(that.getValue()));
+    }
+
+    @Override
+    public HybridNumber divide(HybridNumber that) {
+        if (that.isCompact() ? that.unscaled == 0 : that.big.signum() == 0)
+            throw Failure.DIVISION_BY_ZERO;
+        if (isCompact() && that.isCompact()) {
+            int shift = precision - this.scale + that.scale;
+            if (shift < POWERS_OF_TEN.length) {
+                try {
+                    long dividend = Math.multiplyExact(this.unscaled, POWERS_OF_TEN[shift]);
+                    // the one quotient of longs that overflows
+                    if (dividend != Long.MIN_VALUE || that.unscaled != -1)
+                        return compact(dividend / that.unscaled, precision);
+                } catch (ArithmeticException overflow) {
+                    // promote
+                }
+            }
+        }
+        return copy(this.getValue().divide(that.getValue(), precision, DEFAULT_ROUNDING));
+    }
+
+    @Override
+    public HybridNumber sqrt() {
+        return copy(Number.sqrt(getValue(), precision));
+    }
+
+    private long rescale(int s) {
+        return Math.multiplyExact(unscaled, POWERS_OF_TEN[s - scale]);
+    }
+
+    private HybridNumber compact(long unscaled, int scale) {
+        HybridNumber n = new HybridNumber();
+        n.precision = this.precision;
+        n.displayPrecision = this.displayPrecision;
+        n.setCompact(unscaled, scale);
+        return n;
+    }
+
+    private HybridNumber copy(BigDecimal that) {
+        return of(that, this.precision, this.displayPrecision);
+    }
+
+    /*
+     * Equal numbers have the same value, precision and display precision,
+     * like Number. A value may be held as a long or as a BigDecimal, both
+     * are compared and hashed in their stripped form.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof HybridNumber)) return false;
+        HybridNumber that = (HybridNumber) o;
+        if (precision != that.precision || displayPrecision != that.displayPrecision) return false;
+        if (big == null && that.big == null)
+            return unscaled == that.unscaled && scale == that.scale;
+        return getValue().compareTo(that.getValue()) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        BigDecimal stripped = big != null ? big.stripTrailingZeros() : BigDecimal.valueOf(unscaled, scale);
+        return (stripped.hashCode() * 31 + precision) * 31 + displayPrecision;
+    }
+
+    /**
+     * Override toString() to apply display precision,
+     * formatted the same way as Number.
+     **/
+    @Override
+    public String toString() {
+        if (rendersCompact())
+            return Renderer.toString(unscaled, scale, displayPrecision, unscaled < 0);
+        BigDecimal value = big != null ? big : BigDecimal.valueOf(unscaled, scale);
+        BigDecimal display = value.setScale(Math.min(value.scale(), displayPrecision), DEFAULT_ROUNDING);
+        if (display.signum() == 0)
+            return value.signum() < 0 ? "-0" : "0";
+        return display.stripTrailingZeros().toPlainString();
+    }
+
+    /*
+     * Garbage-free while the value is held as a long.
+     */
+    @Override
+    public void render(Appendable out) throws IOException {
+        if (rendersCompact()) Renderer.append(out, unscaled, scale, displayPrecision, unscaled < 0);
+        else out.append(toString());
+    }
+
+    @Override
+    public OptionalInt intValueExact() {
+        try {
+            return OptionalInt.of(getValue().intValueExact());
+        } catch (ArithmeticException e) {
+            return OptionalInt.empty();
+        }
+    }
+
+    /*
+     * The number, and its BigDecimal once promoted.
+     */
+    @Override
+    public long retainedBytes() {
+        long bytes = Measurable.OBJECT_BYTES + 8;
+        if (big != null)
+            bytes += Measurable.OBJECT_BYTES + 8 + (big.precision() > Renderer.MAX_DISPLAY_PRECISION
+                    ? Measurable.OBJECT_BYTES + 16 + (big.unscaledValue().bitLength() + 31) / 32 * Integer.BYTES : 0);
+        return bytes;
+    }
+
+    private boolean rendersCompact() {
+        return big == null && displayPrecision >= 0 && displayPrecision <= Renderer.MAX_DISPLAY_PRECISION;
+    }
+}
@@ -0,0 +1,391 @@
+package rpn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Stack for stacks larger than the heap.
+ *
+ * The top entries are kept on the heap (the hot region). Once it
+ * overflows, its oldest half is encoded with a CommandCodec and appended
+ * to memory-mapped segment files (the cold region), so heap usage stays
+ * bounded by the hot region whatever the depth. Entries are paged back in
+ * (decoded) when popped or streamed; results cached before spilling are
+ * lost and evaluate again.
+ *
+ * Each record in a segment is framed as
+ *   length | size | encoded command | length
+ * so that the cold region can be read forward by stream() and backward
+ * by pop(). size() and allSize() come from segment metadata.
+ *
+ * Entries that can't be encoded (Custom commands, or trees holding one)
+ * stay hot, and so do the entries above them, the cold region being the
+ * bottom of the stack in order. A spill that fails on I/O also leaves its
+ * entries hot, the push itself is complete either way.
+ *
+ * retainedBytes() only counts the hot region.
+ *
+ * Same locking as Stack.PreliminaryStack. stream() and allElements()
+ * are weakly consistent: they page entries in one at a time, and the
+ * cold part ends early if cold entries are popped in the meantime.
+ **/
+public final class MappedStack<E extends Operatable<E>> implements Stack<Command<E>>, Closeable {
+    private static final int DEFAULT_HOT_ENTRIES = 4096;
+    private static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+    private static final int FRAME_BYTES = 3 * Integer.BYTES;
+
+    private final Path directory;
+    private final CommandCodec<E> codec;
+    private final int hotEntries;
+    private final int segmentBytes;
+    private final ArrayList<Command<E>> hot = new ArrayList<>();
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private final ByteArrayOutputStream scratch = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(scratch);
+    private final Lock lock = new ReentrantLock();
+    // oldest hot entry found unencodable, not tried again
+    private Command<E> unencodable;
+    // bumped on every cold pop, invalidates running cold iterations
+    private int coldPops;
+    private volatile int size;
+    private volatile int allSize;
+    private volatile long retainedBytes;
+
+    private MappedStack(Path directory, CommandCodec<E> codec, int hotEntries, int segmentBytes) {
+        this.directory = directory;
+        this.codec = codec;
+        this.hotEntries = hotEntries;
+        this.segmentBytes = segmentBytes;
+    }
+
+    public static<E extends Operatable<E>> MappedStack<E> newInstance(Path directory, CommandCodec<E> codec) {
+        return newInstance(directory, codec, DEFAULT_HOT_ENTRIES, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public static<E extends Operatable<E>> MappedStack<E> newInstance(
+            Path directory, CommandCodec<E> codec, int hotEntries, int segmentBytes) {
+        if (hotEntries < 2 || segmentBytes < FRAME_BYTES)
+            throw new IllegalArgumentException("Hot region or segment too small");
+        return new MappedStack<>(directory, codec, hotEntries, segmentBytes);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int allSize() {
+        return allSize;
+    }
+
+    @Override
+    public long retainedBytes() {
+        return retainedBytes;
+    }
+
+    /*
+     * Number of entries currently on the heap.
+     */
+    public int hotSize() {
+        return hot.size();
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void push(List<Command<E>> e) {
+        Iterator<Command<E>> iter = e.iterator();
+        try {
+            lock.lock();
+            while (iter.hasNext()) {
+                Command<E> next = iter.next();
+                hot.add(next);
+                size++;
+                allSize += next.size();
+                retainedBytes += next.retainedBytes();
+            }
+            if (hot.size() > hotEntries)
+                spill(hot.size() - hotEntries / 2);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Command<E>> pop(int n) {
+        if (n < 1 || n > size()) return Arrays.asList();
+        try {
+            lock.lock();
+            if (n > size) return Arrays.asList();
+            int fromHot = Math.min(n, hot.size());
+            List<Command<E>> result = new ArrayList<>(n);
+            for (int i = 0; i < n - fromHot; i++)
+                result.add(popCold());
+            Collections.reverse(result);
+            List<Command<E>> top = hot.subList(hot.size() - fromHot, hot.size());
+            for (Command<E> c : top) {
+                allSize -= c.size();
+                retainedBytes -= c.retainedBytes();
+            }
+            result.addAll(top);
+            top.clear();
+            if (hot.isEmpty() || hot.get(0) != unencodable) unencodable = null;
+            size -= n;
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Command<E>> allElements() {
+        return stream().collect(Collectors.toList());
+    }
+
+    @Override
+    public Stream<Command<E>> stream() {
+        List<Command<E>> hotSnapshot;
+        Iterator<Command<E>> cold;
+        try {
+            lock.lock();
+            hotSnapshot = new ArrayList<>(hot);
+            cold = new ColdIterator(segments.size(), coldPops);
+        } finally {
+            lock.unlock();
+        }
+        return Stream.concat(
+                StreamSupport.stream(Spliterators.spliteratorUnknownSize(cold, Spliterator.ORDERED), false),
+                hotSnapshot.stream());
+    }
+
+    /**
+     * Deletes all segment files, the stack is empty afterwards.
+     **/
+    @Override
+    public void close() throws IOException {
+        try {
+            lock.lock();
+            for (Segment segment : segments)
+                segment.delete();
+            segments.clear();
+            hot.clear();
+            unencodable = null;
+            size = 0;
+            allSize = 0;
+            retainedBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Moves the oldest hot entries to the cold region, in order, up to
+     * the first one that can't be encoded. Each entry is encoded before
+     * anything is written, and leaves the hot region once appended.
+     */
+    private void spill(int count) {
+        int spilled = 0;
+        try {
+            for (; spilled < count; spilled++) {
+                Command<E> c = hot.get(spilled);
+                if (c == unencodable || !encode(c)) {
+                    unencodable = c;
+                    break;
+                }
+                append(c);
+                retainedBytes -= c.retainedBytes();
+            }
+        } catch (UncheckedIOException e) {
+            // stays hot
+        } finally {
+            hot.subList(0, spilled).clear();
+        }
+    }
+
+    /*
+     * Encodes command into scratch, false if it has no encoded form.
+     */
+    private boolean encode(Command<E> command) {
+        try {
+            scratch.reset();
+            codec.encode(command, out);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * Appends the record of the command encoded in scratch.
+     */
+    private void append(Command<E> command) {
+        try {
+            int length = scratch.size();
+            int record = length + FRAME_BYTES;
+            Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (segment == null || segment.remaining() < record) {
+                segment = new Segment(Files.createTempFile(directory, "segment-", ".rpn"), Math.max(segmentBytes, record));
+                segments.add(segment);
+            }
+            MappedByteBuffer buffer = segment.buffer;
+            int start = segment.used;
+            buffer.putInt(start, length);
+            buffer.putInt(start + Integer.BYTES, command.size());
+            ByteBuffer view = buffer.duplicate();
+            view.position(start + 2 * Integer.BYTES);
+            view.put(scratch.toByteArray());
+            buffer.putInt(start + 2 * Integer.BYTES + length, length);
+            segment.used += record;
+            segment.count++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Command<E> popCold() {
+        Segment segment = segments.get(segments.size() - 1);
+        MappedByteBuffer buffer = segment.buffer;
+        int length = buffer.getInt(segment.used - Integer.BYTES);
+        int start = segment.used - length - FRAME_BYTES;
+        Command<E> command = decode(buffer, start);
+        allSize -= buffer.getInt(start + Integer.BYTES);
+        segment.used = start;
+        coldPops++;
+        if (--segment.count == 0) {
+            segments.remove(segments.size() - 1);
+            segment.delete();
+        }
+        return command;
+    }
+
+    private Command<E> decode(MappedByteBuffer buffer, int start) {
+        int length = buffer.getInt(start);
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(start + 2 * Integer.BYTES);
+        view.get(bytes);
+        try {
+            return codec.decode(new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * Pages cold entries in one at a time, oldest first,
+     * stopping at entries popped since the iteration began.
+     */
+    private final class ColdIterator implements Iterator<Command<E>> {
+        private final int segmentLimit;
+        private final int expectedColdPops;
+        private Segment segment;
+        private int segmentIndex;
+        private int offset;
+
+        private ColdIterator(int segmentLimit, int expectedColdPops) {
+            this.segmentLimit = segmentLimit;
+            this.expectedColdPops = expectedColdPops;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                lock.lock();
+                if (coldPops != expectedColdPops) return false;
+                while (segmentIndex < Math.min(segmentLimit, segments.size())) {
+                    Segment current = segments.get(segmentIndex);
+                    if (current != segment) {
+                        segment = current;
+                        offset = 0;
+                    }
+                    if (offset < segment.used) return true;
+                    segmentIndex++;
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Command<E> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            try {
+                lock.lock();
+                Command<E> command = decode(segment.buffer, offset);
+                offset += segment.buffer.getInt(offset) + FRAME_BYTES;
+                return command;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /*
+     * One mapped segment file and its metadata.
+     */
+    private static final class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int used;
+        private int count;
+
+        private Segment(Path path, int bytes) {
+            try {
+                this.path = path;
+                this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            } catch (IOException e) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private int remaining() {
+            return buffer.capacity() - used;
+        }
+
+        private void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -1,5 +1,20 @@
 package rpn;
 
 public interface Measurable {
+    // an object header and a few fields, e.g. a node or a decorator
+    int OBJECT_BYTES = 32;
+    // a cached result: the Either and a number with its display
+    int RESULT_BYTES = 128;
+
     int size();
+
+    /*
+     * Estimated heap held by the element, in bytes: its objects, the
+     * values of its literals, and every result slot counted as filled,
+     * so that the estimate doesn't move when evaluation caches results.
+     * Subtrees shared by several elements are counted by each.
+     */
+    default long retainedBytes() {
+        return size() * (long) (OBJECT_BYTES + RESULT_BYTES);
+    }
 }
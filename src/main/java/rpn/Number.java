@@ -1,10 +1,15 @@
 package rpn;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
 import java.util.Collections;
 import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Implementation of the operatable interface.
@@ -15,9 +20,16 @@ public class Number implements Operatable<Number> {
     private static int DEFUALT_PRECISION = 15;
     private static int DEFUALT_DISPLAY_PRECISION = 10;
     private static int DEFUALT_ROUNDING = BigDecimal.ROUND_DOWN;
+    private static final int SQRT_SEED_BITS = 52;
+    private static final SqrtMemo[] SQRT_MEMO = new SqrtMemo[256];
+    // Number.of() formats, by display precision
+    private static final AtomicReferenceArray<DecimalFormat> FORMATS =
+            new AtomicReferenceArray<>(Renderer.MAX_DISPLAY_PRECISION + 1);
     private int precision;
     private DecimalFormat format;
     private BigDecimal value;
+    // worked out on first display, racy but immutable
+    private Display display;
 
     private Number(){}
 
@@ -41,15 +53,64 @@ public class Number implements Operatable<Number> {
      * Returns Optional.Empty if the input is an invalid number.
      **/
     public static Optional<Number> of(String value, int precision, int displayPrecision) {
+        if (!isDecimal(value)) return Optional.empty();
         try {
-            DecimalFormat format = new DecimalFormat("#." + String.join("", Collections.nCopies(displayPrecision, "#")));
-            format.setRoundingMode(RoundingMode.valueOf(DEFUALT_ROUNDING));
-            return Optional.of(of(new BigDecimal(value), precision, format));
-        } catch (NumberFormatException|NullPointerException e) {
+            return Optional.of(of(new BigDecimal(value), precision, format(displayPrecision)));
+        } catch (NumberFormatException e) {
+            // e.g. exponent out of range, the syntax was valid
             return Optional.empty();
         }
     }
 
+    /*
+     * Formats are shared by all the numbers of a display precision, a
+     * DecimalFormat with its symbols weighs more than a kilobyte. They are
+     * never modified after construction, published through the atomic
+     * array and only used under their lock.
+     */
+    private static DecimalFormat format(int displayPrecision) {
+        boolean shared = displayPrecision >= 0 && displayPrecision < FORMATS.length();
+        DecimalFormat format = shared ? FORMATS.get(displayPrecision) : null;
+        if (format == null) {
+            format = new DecimalFormat("#." + String.join("", Collections.nCopies(displayPrecision, "#")));
+            format.setRoundingMode(RoundingMode.valueOf(DEFUALT_ROUNDING));
+            // the loser of a race uses the winner's instance
+            if (shared && !FORMATS.compareAndSet(displayPrecision, null, format))
+                format = FORMATS.get(displayPrecision);
+        }
+        return format;
+    }
+
+    /*
+     * Checks the BigDecimal literal syntax up front,
+     * so that malformed input is rejected without throwing:
+     * [+-] digits [. digits] [(e|E) [+-] digits], at least one mantissa digit.
+     */
+    static boolean isDecimal(String value) {
+        if (value == null) return false;
+        int i = 0, length = value.length();
+        if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) i++;
+        int digits = 0;
+        boolean point = false;
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') digits++;
+            else if (c == '.' && !point) point = true;
+            else break;
+        }
+        if (digits == 0) return false;
+        if (i == length) return true;
+        if (value.charAt(i) != 'e' && value.charAt(i) != 'E') return false;
+        i++;
+        if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) i++;
+        if (i == length) return false;
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
     /**
      * Factory method with input BigDecimal, calculation precision
      * and display precision.
@@ -71,7 +132,66 @@ public class Number implements Operatable<Number> {
 
     @Override
     public Number sqrt() {
-        return copy(BigDecimal.valueOf(Math.sqrt(this.value.doubleValue())));
+        return copy(sqrt(this.value, this.precision));
+    }
+
+    /*
+     * Square root truncated (ROUND_DOWN) to the given scale,
+     * shared with HybridNumber so that both agree on every result.
+     *
+     * Computed exactly as the integer square root of value * 10^(2 * scale),
+     * by Newton iteration seeded from the double estimate: each step doubles
+     * the number of correct digits, so one or two steps usually suffice.
+     * Recent operands are memoized.
+     */
+    static BigDecimal sqrt(BigDecimal value, int precision) {
+        if (value.signum() < 0)
+            throw Failure.NEGATIVE_SQRT;
+
+        int slot = (value.hashCode() * 31 + precision) & (SQRT_MEMO.length - 1);
+        SqrtMemo memo = SQRT_MEMO[slot];
+        if (memo != null && memo.precision == precision && memo.value.equals(value))
+            return memo.result;
+
+        BigInteger n = value.movePointRight(2 * precision).setScale(0, RoundingMode.valueOf(DEFUALT_ROUNDING)).unscaledValue();
+        BigDecimal result = new BigDecimal(sqrt(n), precision);
+        SQRT_MEMO[slot] = new SqrtMemo(value, precision, result);
+        return result;
+    }
+
+    /*
+     * Integer square root, floor(sqrt(n)).
+     * The first Newton step from any positive seed lands on or above
+     * the root, after which the iteration decreases until it settles.
+     */
+    private static BigInteger sqrt(BigInteger n) {
+        if (n.signum() == 0) return n;
+        // keep the seed operand within double precision, shift by an even number of bits
+        int shift = Math.max(0, (n.bitLength() - 2 * SQRT_SEED_BITS) & ~1);
+        long estimate = (long) Math.sqrt(n.shiftRight(shift).doubleValue());
+        BigInteger x = BigInteger.valueOf(estimate + 1).shiftLeft(shift / 2);
+        x = x.add(n.divide(x)).shiftRight(1);
+        while (true) {
+            BigInteger y = x.add(n.divide(x)).shiftRight(1);
+            if (y.compareTo(x) >= 0) return x;
+            x = y;
+        }
+    }
+
+    /*
+     * Direct-mapped memo entry, immutable so that racy
+     * reads of the memo table at worst miss.
+     */
+    private static final class SqrtMemo {
+        private final BigDecimal value;
+        private final int precision;
+        private final BigDecimal result;
+
+        private SqrtMemo(BigDecimal value, int precision, BigDecimal result) {
+            this.value = value;
+            this.precision = precision;
+            this.result = result;
+        }
     }
 
     @Override
@@ -79,6 +199,7 @@ public class Number implements Operatable<Number> {
 
     @Override
     public Number divide(Number that) {
+        if (that.value.signum() == 0) throw Failure.DIVISION_BY_ZERO;
         return copy(this.value.divide(that.value, precision, DEFUALT_ROUNDING));
     }
 
@@ -89,11 +210,122 @@ public class Number implements Operatable<Number> {
         return of(that, this.precision, this.format);
     }
 
+    /*
+     * Equal numbers have the same value, precision and display precision,
+     * so that either one can stand for the other, e.g. as a cache key.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Number)) return false;
+        Number that = (Number) o;
+        return precision == that.precision
+                && format.getMaximumFractionDigits() == that.format.getMaximumFractionDigits()
+                && value.equals(that.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return (value.hashCode() * 31 + precision) * 31 + format.getMaximumFractionDigits();
+    }
+
+    @Override
+    public OptionalInt intValueExact() {
+        try {
+            return OptionalInt.of(value.intValueExact());
+        } catch (ArithmeticException e) {
+            return OptionalInt.empty();
+        }
+    }
+
+    /*
+     * The number, its BigDecimal and display, and the magnitude array of
+     * values past a long. The format is shared and not counted.
+     */
+    @Override
+    public long retainedBytes() {
+        long bytes = 3 * Measurable.OBJECT_BYTES + 8;
+        if (value.precision() > Renderer.MAX_DISPLAY_PRECISION)
+            bytes += Measurable.OBJECT_BYTES + 16 + (value.unscaledValue().bitLength() + 31) / 32 * Integer.BYTES;
+        return bytes;
+    }
+
     /**
      * Override toString() to apply display precision.
      **/
     @Override
     public String toString() {
-        return format.format(value);
+        return display().toString();
+    }
+
+    /*
+     * Garbage-free once the number has been displayed,
+     * unless the format isn't the plain one Number.of() builds.
+     */
+    @Override
+    public void render(Appendable out) throws IOException {
+        display().render(out);
+    }
+
+    private Display display() {
+        Display d = display;
+        if (d == null) display = d = Display.of(value, format);
+        return d;
+    }
+
+    /*
+     * The value truncated to the display precision, as a long, when the
+     * format is plain (no grouping, ROUND_DOWN, '.' and '-', like the one
+     * Number.of() builds) and the digits fit. Otherwise the output of the
+     * format itself, which isn't thread-safe and is used under its lock.
+     */
+    private static final class Display {
+        private final long unscaled;
+        private final int scale;
+        private final int displayPrecision;
+        private final boolean negative;
+        private final String formatted;
+
+        private Display(long unscaled, int scale, int displayPrecision, boolean negative, String formatted) {
+            this.unscaled = unscaled;
+            this.scale = scale;
+            this.displayPrecision = displayPrecision;
+            this.negative = negative;
+            this.formatted = formatted;
+        }
+
+        private static Display of(BigDecimal value, DecimalFormat format) {
+            int displayPrecision = format.getMaximumFractionDigits();
+            if (displayPrecision <= Renderer.MAX_DISPLAY_PRECISION && isPlain(format)) {
+                BigDecimal truncated = value.setScale(Math.max(0, Math.min(value.scale(), displayPrecision)), DEFUALT_ROUNDING);
+                if (truncated.precision() <= Renderer.MAX_DISPLAY_PRECISION)
+                    return new Display(truncated.unscaledValue().longValue(), truncated.scale(),
+                            displayPrecision, value.signum() < 0, null);
+            }
+            synchronized (format) {
+                return new Display(0, 0, 0, false, format.format(value));
+            }
+        }
+
+        private static boolean isPlain(DecimalFormat format) {
+            DecimalFormatSymbols symbols = format.getDecimalFormatSymbols();
+            return !format.isGroupingUsed() && !format.isDecimalSeparatorAlwaysShown()
+                    && format.getRoundingMode() == RoundingMode.DOWN && format.getMultiplier() == 1
+                    && format.getMinimumIntegerDigits() == 1 && format.getMaximumIntegerDigits() > Renderer.MAX_DISPLAY_PRECISION
+                    && format.getMinimumFractionDigits() == 0
+                    && format.getPositivePrefix().isEmpty() && format.getPositiveSuffix().isEmpty()
+                    && format.getNegativePrefix().equals("-") && format.getNegativeSuffix().isEmpty()
+                    && symbols.getDecimalSeparator() == '.' && symbols.getZeroDigit() == '0';
+        }
+
+        private void render(Appendable out) throws IOException {
+            if (formatted != null) out.append(formatted);
+            else Renderer.append(out, unscaled, scale, displayPrecision, negative);
+        }
+
+        @Override
+        public String toString() {
+            return formatted != null ? formatted : Renderer.toString(unscaled, scale, displayPrecision, negative);
+        }
     }
 }
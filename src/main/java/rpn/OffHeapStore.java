@@ -0,0 +1,369 @@
+package rpn;
+
+import io.vavr.control.Either;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Command trees encoded off-heap, one fixed-size record per node
+ * in chunks of direct memory:
+ *
+ *   opcode | left | right | operand | size | result
+ *
+ * left and right are child node ids, operand indexes the operand pool
+ * (literal values, and commands built outside of this store) and result
+ * indexes the result pool once the node has been evaluated, -1 before.
+ *
+ * Commands and stacks handed out are flyweight views over node ids, so
+ * the garbage collector only ever sees literal values, computed results
+ * and the views currently in use. The store is append-only: nodes live
+ * as long as the store does, which is one calculator session. Views may
+ * outlive a pop (undo lists, published events), so ids are never reused,
+ * and the retained bytes of the store's stacks are those of the whole
+ * store, popped nodes included, see retainedBytes().
+ **/
+public final class OffHeapStore<E extends Operatable<E>> implements CommandFactory<E> {
+    private static final int OPCODE = 0, LEFT = 4, RIGHT = 8, OPERAND = 12, SIZE = 16, RESULT = 20;
+    private static final int RECORD_BYTES = 24;
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+    private static final int NONE = -1;
+
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private int nodes;
+    private final Pool<Object> operands = new Pool<>();
+    private final Pool<Either<Exception, E>> results = new Pool<>();
+    // estimate of the values and commands held by the pools
+    private final LongAdder pooledBytes = new LongAdder();
+
+    private OffHeapStore() {}
+
+    public static<E extends Operatable<E>> OffHeapStore<E> newInstance() {
+        return new OffHeapStore<>();
+    }
+
+    /**
+     * A new, empty stack of this store's nodes.
+     * Commands from elsewhere are encoded as opaque nodes when pushed.
+     **/
+    public Stack<Command<E>> newStack() {
+        return new NodeStack();
+    }
+
+    public synchronized int nodeCount() {
+        return nodes;
+    }
+
+    /*
+     * Direct memory held by node records.
+     */
+    public long offHeapBytes() {
+        return (long) chunks.length * (RECORD_BYTES << CHUNK_SHIFT);
+    }
+
+    /*
+     * Estimated memory held by the store, on and off the heap: node
+     * records, pool chunks, and the values, results and foreign commands
+     * in the pools. It only grows, nothing is reclaimed before the store is.
+     */
+    public long retainedBytes() {
+        return offHeapBytes() + operands.chunkBytes() + results.chunkBytes() + pooledBytes.sum();
+    }
+
+    @Override
+    public Command<E> literal(E value) {
+        pooledBytes.add(Measurable.OBJECT_BYTES + value.retainedBytes());
+        return new Node(allocate(Opcode.Literal, NONE, NONE, operands.add(Either.right(value)), 1));
+    }
+
+    @Override
+    public Command<E> unary(Opcode opcode, Command<E> operand) {
+        int child = idOf(operand);
+        return new Node(allocate(opcode, child, NONE, NONE, 1 + sizeOf(child)));
+    }
+
+    @Override
+    public Command<E> binary(Opcode opcode, Command<E> left, Command<E> right) {
+        int l = idOf(left), r = idOf(right);
+        return new Node(allocate(opcode, l, r, NONE, 1 + sizeOf(l) + sizeOf(r)));
+    }
+
+    private int idOf(Command<E> command) {
+        if (command instanceof OffHeapStore.Node && ((Node) command).store() == this)
+            return ((Node) command).id;
+        pooledBytes.add(command.retainedBytes());
+        return allocate(Opcode.Custom, NONE, NONE, operands.add(command), command.size());
+    }
+
+    private synchronized int allocate(Opcode opcode, int left, int right, int operand, int size) {
+        int id = nodes;
+        if ((id >> CHUNK_SHIFT) == chunks.length) {
+            ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            grown[chunks.length] = ByteBuffer.allocateDirect(RECORD_BYTES << CHUNK_SHIFT);
+            chunks = grown;
+        }
+        ByteBuffer chunk = chunk(id);
+        int base = base(id);
+        chunk.putInt(base + OPCODE, opcode.ordinal());
+        chunk.putInt(base + LEFT, left);
+        chunk.putInt(base + RIGHT, right);
+        chunk.putInt(base + OPERAND, operand);
+        chunk.putInt(base + SIZE, size);
+        chunk.putInt(base + RESULT, NONE);
+        nodes++;
+        return id;
+    }
+
+    private ByteBuffer chunk(int id) {
+        return chunks[id >> CHUNK_SHIFT];
+    }
+
+    private static int base(int id) {
+        return (id & CHUNK_MASK) * RECORD_BYTES;
+    }
+
+    private int field(int id, int field) {
+        return chunk(id).getInt(base(id) + field);
+    }
+
+    private int sizeOf(int id) {
+        return field(id, SIZE);
+    }
+
+    private Opcode opcodeOf(int id) {
+        return Opcode.valueOf(field(id, OPCODE));
+    }
+
+    /*
+     * Evaluates a node, caching the result in its slot.
+     * Two threads racing on the same node may both compute it,
+     * the slot written last wins; operators are pure so both agree.
+     */
+    @SuppressWarnings("unchecked")
+    private Either<Exception, E> evaluate(int id) {
+        int slot = field(id, RESULT);
+        if (slot != NONE) {
+            Either<Exception, E> cached = results.get(slot);
+            if (cached != null) return cached;
+        }
+        Opcode opcode = opcodeOf(id);
+        if (opcode == Opcode.Literal)
+            return (Either<Exception, E>) operands.get(field(id, OPERAND));
+        if (opcode == Opcode.Custom)
+            return ((Command<E>) operands.get(field(id, OPERAND))).apply();
+
+        Either<Exception, E> result = compute(opcode, id);
+        if (result.isRight() || !Failure.isTransient(result.getLeft())) {
+            chunk(id).putInt(base(id) + RESULT, results.add(result));
+            pooledBytes.add(Measurable.OBJECT_BYTES + (result.isRight() ? result.get().retainedBytes() : 0));
+        }
+        return result;
+    }
+
+    private Either<Exception, E> compute(Opcode opcode, int id) {
+        Either<Exception, E> left = evaluate(field(id, LEFT));
+        if (left.isLeft()) return left;
+        Either<Exception, E> right = null;
+        if (opcode.arity() == 2) {
+            right = evaluate(field(id, RIGHT));
+            if (right.isLeft()) return right;
+        }
+        Optional<Failure> exhausted = Budget.charge();
+        if (exhausted.isPresent()) return Either.left(exhausted.get());
+        try {
+            return Either.right(right == null ? opcode.apply(left.get()) : opcode.apply(left.get(), right.get()));
+        } catch (Exception e) {
+            return Either.left(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Command<E>> undo(int id) {
+        Opcode opcode = opcodeOf(id);
+        switch (opcode.arity()) {
+            case 0:
+                return Arrays.asList();
+            case 1:
+                return Arrays.asList(new Node(field(id, LEFT)));
+            case 2:
+                return Arrays.asList(new Node(field(id, LEFT)), new Node(field(id, RIGHT)));
+            default:
+                return ((Command<E>) operands.get(field(id, OPERAND))).undo();
+        }
+    }
+
+    /*
+     * Flyweight command view of a node.
+     */
+    final class Node implements Command<E> {
+        private final int id;
+
+        private Node(int id) {
+            this.id = id;
+        }
+
+        private OffHeapStore<E> store() {
+            return OffHeapStore.this;
+        }
+
+        @Override
+        public Either<Exception, E> apply() {
+            return evaluate(id);
+        }
+
+        @Override
+        public List<Command<E>> undo() {
+            return OffHeapStore.this.undo(id);
+        }
+
+        @Override
+        public int size() {
+            return sizeOf(id);
+        }
+
+        // a record in direct memory and a result on the heap per node
+        @Override
+        public long retainedBytes() {
+            return sizeOf(id) * (long) (RECORD_BYTES + RESULT_BYTES);
+        }
+
+        @Override
+        public Opcode opcode() {
+            return opcodeOf(id);
+        }
+    }
+
+    /*
+     * Stack of node ids in direct memory, same locking
+     * and snapshot semantics as Stack.PreliminaryStack.
+     * Its retained bytes are the store's and its own ids.
+     */
+    private final class NodeStack implements Stack<Command<E>> {
+        private static final int INITIAL_CAPACITY = 1024;
+        private ByteBuffer ids = ByteBuffer.allocateDirect(INITIAL_CAPACITY * Integer.BYTES);
+        private volatile int count;
+        private volatile int allSize;
+        private final Lock lock = new ReentrantLock();
+
+        @Override
+        public void push(List<Command<E>> e) {
+            Iterator<Command<E>> iter = e.iterator();
+            try {
+                lock.lock();
+                int added = 0, n = count;
+                while (iter.hasNext()) {
+                    int id = idOf(iter.next());
+                    if (n * Integer.BYTES == ids.capacity()) {
+                        ByteBuffer grown = ByteBuffer.allocateDirect(ids.capacity() * 2);
+                        ids.clear();
+                        grown.put(ids);
+                        ids = grown;
+                    }
+                    ids.putInt(n * Integer.BYTES, id);
+                    added += sizeOf(id);
+                    n++;
+                }
+                allSize += added;
+                count = n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public List<Command<E>> pop(int n) {
+            if (n < 1 || n > size()) return Arrays.asList();
+            try {
+                lock.lock();
+                if (n > count) return Arrays.asList();
+                List<Command<E>> result = slice(count - n, count);
+                int removed = 0;
+                for (Command<E> c : result)
+                    removed += c.size();
+                allSize -= removed;
+                count -= n;
+                return result;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public List<Command<E>> allElements() {
+            try {
+                lock.lock();
+                return slice(0, count);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private List<Command<E>> slice(int from, int to) {
+            List<Command<E>> result = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++)
+                result.add(new Node(ids.getInt(i * Integer.BYTES)));
+            return result;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public int allSize() {
+            return allSize;
+        }
+
+        @Override
+        public long retainedBytes() {
+            return OffHeapStore.this.retainedBytes() + ids.capacity();
+        }
+
+        @Override
+        public Stream<Command<E>> stream() {
+            return allElements().stream();
+        }
+    }
+
+    /*
+     * Append-only pool of heap objects in fixed-size chunks,
+     * indexed by int so that records can refer to them.
+     * Readers racing an append may see null for the newest slot.
+     */
+    private static final class Pool<T> {
+        private volatile Object[][] chunks = new Object[0][];
+        private int size;
+
+        private synchronized int add(T value) {
+            int index = size;
+            if ((index >> CHUNK_SHIFT) == chunks.length) {
+                Object[][] grown = Arrays.copyOf(chunks, chunks.length + 1);
+                grown[chunks.length] = new Object[1 << CHUNK_SHIFT];
+                chunks = grown;
+            }
+            chunks[index >> CHUNK_SHIFT][index & CHUNK_MASK] = value;
+            size++;
+            return index;
+        }
+
+        private long chunkBytes() {
+            return chunks.length * (16L + ((long) Integer.BYTES << CHUNK_SHIFT));
+        }
+
+        @SuppressWarnings("unchecked")
+        private T get(int index) {
+            Object[][] c = chunks;
+            return (index >> CHUNK_SHIFT) < c.length ? (T) c[index >> CHUNK_SHIFT][index & CHUNK_MASK] : null;
+        }
+    }
+}
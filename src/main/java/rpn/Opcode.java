@@ -0,0 +1,45 @@
+package rpn;
+
+/**
+ * Built-in operators, as encoded in command trees.
+ * Custom marks a command whose operator is opaque: a custom
+ * operator, or a command built outside of CommandFactory.
+ **/
+public enum Opcode {
+    Literal(null, 0), Add("+", 2), Subtract("-", 2), Multiply("*", 2), Divide("/", 2), Sqrt("sqrt", 1), Custom(null, -1);
+
+    private static final Opcode[] VALUES = values();
+
+    private final String token;
+    private final int arity;
+
+    Opcode(String token, int arity) {
+        this.token = token;
+        this.arity = arity;
+    }
+
+    public String token() { return token; }
+
+    public int arity() { return arity; }
+
+    public static Opcode valueOf(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    public <E extends Operatable<E>> E apply(E operand) {
+        switch (this) {
+            case Sqrt: return operand.sqrt();
+            default: throw new IllegalStateException("Not a unary operator: " + this);
+        }
+    }
+
+    public <E extends Operatable<E>> E apply(E left, E right) {
+        switch (this) {
+            case Add: return left.add(right);
+            case Subtract: return left.substract(right);
+            case Multiply: return left.multiply(right);
+            case Divide: return left.divide(right);
+            default: throw new IllegalStateException("Not a binary operator: " + this);
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package rpn;
 
+import java.io.IOException;
+import java.util.OptionalInt;
+
 /**
  * interface for all number operations.
  **/
@@ -9,4 +12,28 @@ public interface Operatable<T> {
     T divide(T arg);
     T multiply(T arg);
     T sqrt();
+
+    /*
+     * Appends the display form, the same characters as toString().
+     * Number and HybridNumber do so without allocating.
+     */
+    default void render(Appendable out) throws IOException {
+        out.append(toString());
+    }
+
+    /*
+     * The value as an int when it is an integer in range, at full
+     * precision rather than as displayed. Empty by default.
+     */
+    default OptionalInt intValueExact() {
+        return OptionalInt.empty();
+    }
+
+    /*
+     * Estimated heap held by the value, in bytes,
+     * see Measurable.retainedBytes().
+     */
+    default long retainedBytes() {
+        return Measurable.RESULT_BYTES;
+    }
 }
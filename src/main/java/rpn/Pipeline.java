@@ -0,0 +1,289 @@
+package rpn;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Pipelined ingestion of a stream of tokens:
+ *
+ *   tokenize  ->  classify  ->  assemble
+ *
+ * Tokenizing and classifying (registry lookup and literal parsing) run
+ * on their own threads, assembly runs on the calling thread, in token
+ * order, so that it sees the same stack as a sequential push and reports
+ * the same error positions. Stages are connected by preallocated
+ * single-producer/single-consumer rings, published in batches.
+ *
+ * Ingestion stops at the first error. Exceptions thrown on a stage
+ * thread, by the input or the classifier, unchecked ones included, are
+ * forwarded downstream and returned. Upstream stages read ahead, so the
+ * input may have been consumed past the offending token. What's left of
+ * it is not read: a tokenizing thread still waiting on the input is
+ * interrupted and the input is closed, off the calling thread.
+ **/
+final class Pipeline<D> {
+    private static final int RING_CAPACITY = 1 << 12;
+    private static final int BATCH = 64;
+    private static final Object END = new Object();
+    private static final ExecutorService STAGES = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "rpn-ingest");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Reader input;
+    private final Function<String, D> classifier;
+    // tokens, END or the exception that stopped tokenizing
+    private final Ring tokens = new Ring(RING_CAPACITY, 1);
+    // pairs of (token, classification), (END, null) or (exception, null)
+    private final Ring classified = new Ring(RING_CAPACITY, 2);
+    private volatile boolean stopped;
+    // the thread tokenizing, null before and after, guarded by this
+    private Thread tokenizing;
+
+    private Pipeline(Reader input, Function<String, D> classifier) {
+        this.input = input;
+        this.classifier = classifier;
+    }
+
+    /**
+     * Ingests all tokens of input, returns the first error of assembly or input.
+     **/
+    static<D> Optional<Exception> run(
+            Reader input, Function<String, D> classifier, BiFunction<String, D, Optional<Exception>> assembler) {
+        Pipeline<D> pipeline = new Pipeline<>(input, classifier);
+        STAGES.execute(pipeline::tokenize);
+        STAGES.execute(pipeline::classify);
+        try {
+            return pipeline.assemble(assembler);
+        } finally {
+            pipeline.stop();
+        }
+    }
+
+    /*
+     * Stops the stages, and releases the input if it is still being read.
+     * Closing may wait for a pending read, so it is left to a stage thread.
+     */
+    private void stop() {
+        stopped = true;
+        synchronized (this) {
+            if (tokenizing == null) return;
+            tokenizing.interrupt();
+        }
+        STAGES.execute(() -> {
+            try {
+                input.close();
+            } catch (IOException e) {
+                // nothing more will be read
+            }
+        });
+    }
+
+    private void tokenize() {
+        synchronized (this) {
+            if (stopped) return;
+            tokenizing = Thread.currentThread();
+        }
+        Tokenizer tokenizer = new Tokenizer(input, tokens::flush);
+        try {
+            String token;
+            while ((token = tokenizer.next()) != null)
+                if (!offer(tokens, token, null)) return;
+            offer(tokens, END, null);
+        } catch (IOException | RuntimeException e) {
+            offer(tokens, e, null);
+        } finally {
+            tokens.flush();
+            synchronized (this) {
+                tokenizing = null;
+                // an interrupt from stop() must not reach the next task of the pool thread
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private void classify() {
+        int idle = 0;
+        while (!stopped) {
+            Object token = tokens.poll();
+            if (token == null) {
+                classified.flush();
+                idle = idle(idle);
+                continue;
+            }
+            idle = 0;
+            if (!(token instanceof String)) {
+                offer(classified, token, null);
+                classified.flush();
+                return;
+            }
+            D definition;
+            try {
+                definition = classifier.apply((String) token);
+            } catch (RuntimeException e) {
+                offer(classified, e, null);
+                classified.flush();
+                return;
+            }
+            if (!offer(classified, token, definition)) return;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Optional<Exception> assemble(BiFunction<String, D, Optional<Exception>> assembler) {
+        int idle = 0;
+        while (true) {
+            Object token = classified.poll();
+            if (token == null) {
+                idle = idle(idle);
+                continue;
+            }
+            idle = 0;
+            Object definition = classified.poll();
+            if (token == END) return Optional.empty();
+            if (token instanceof Exception) return Optional.of((Exception) token);
+            Optional<Exception> maybeException = assembler.apply((String) token, (D) definition);
+            if (maybeException.isPresent()) return maybeException;
+        }
+    }
+
+    /*
+     * Waits for room in the ring, false if the pipeline was stopped.
+     */
+    private boolean offer(Ring ring, Object first, Object second) {
+        int idle = 0;
+        while (!ring.offer(first, second)) {
+            if (stopped) return false;
+            idle = idle(idle);
+        }
+        return true;
+    }
+
+    /*
+     * Spins, then yields, then parks briefly.
+     */
+    private static int idle(int idle) {
+        if (idle > 200) LockSupport.parkNanos(50_000);
+        else if (idle > 100) Thread.yield();
+        return idle + 1;
+    }
+
+    /*
+     * Splits a character stream on whitespace.
+     * beforeRead runs before blocking on the underlying reader.
+     */
+    static final class Tokenizer {
+        private final Reader input;
+        private final Runnable beforeRead;
+        private final char[] buffer = new char[8192];
+        private final StringBuilder token = new StringBuilder();
+        private int position;
+        private int limit;
+
+        Tokenizer(Reader input, Runnable beforeRead) {
+            this.input = input;
+            this.beforeRead = beforeRead;
+        }
+
+        /*
+         * The next token, null at the end of input.
+         */
+        String next() throws IOException {
+            token.setLength(0);
+            while (true) {
+                if (position == limit) {
+                    beforeRead.run();
+                    limit = input.read(buffer);
+                    position = 0;
+                    if (limit < 0) {
+                        limit = 0;
+                        return token.length() > 0 ? token.toString() : null;
+                    }
+                }
+                int start = position;
+                while (position < limit && !Character.isWhitespace(buffer[position]))
+                    position++;
+                token.append(buffer, start, position - start);
+                if (position < limit) {
+                    position++;
+                    if (token.length() > 0) return token.toString();
+                }
+            }
+        }
+    }
+
+    /*
+     * Bounded single-producer/single-consumer ring of preallocated slots,
+     * holding elements of width slots each (a width of 2 carries pairs).
+     * Each side keeps its position locally and publishes it every BATCH
+     * slots, or on flush(), so the shared counters are touched once
+     * per batch rather than once per element.
+     */
+    private static final class Ring {
+        private final Object[] slots;
+        private final int mask;
+        private final int width;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+        // producer side
+        private long writePosition;
+        private long published;
+        private long headSnapshot;
+        // consumer side
+        private long readPosition;
+        private long tailSnapshot;
+
+        private Ring(int capacity, int width) {
+            slots = new Object[capacity];
+            mask = capacity - 1;
+            this.width = width;
+        }
+
+        /*
+         * second is ignored for rings of width 1.
+         */
+        private boolean offer(Object first, Object second) {
+            if (slots.length - (writePosition - headSnapshot) < width) {
+                headSnapshot = head.get();
+                if (slots.length - (writePosition - headSnapshot) < width) {
+                    flush();
+                    return false;
+                }
+            }
+            slots[(int) writePosition++ & mask] = first;
+            if (width == 2) slots[(int) writePosition++ & mask] = second;
+            if (writePosition - published >= BATCH) flush();
+            return true;
+        }
+
+        private void flush() {
+            published = writePosition;
+            tail.lazySet(writePosition);
+        }
+
+        /*
+         * The next slot, null if none is published. The slots
+         * of one element are always published together.
+         */
+        private Object poll() {
+            if (readPosition == tailSnapshot) {
+                head.lazySet(readPosition);
+                tailSnapshot = tail.get();
+                if (readPosition == tailSnapshot) return null;
+            }
+            int index = (int) readPosition++ & mask;
+            Object o = slots[index];
+            slots[index] = null;
+            if ((readPosition & (BATCH - 1)) == 0) head.lazySet(readPosition);
+            return o;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package rpn;
+
+import io.vavr.control.Either;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Sampling profiler of evaluations, to find the entries and
+ * operators of a stack that evaluation time goes to.
+ *
+ * Opt-in in two places: the calculator is built with a strategy
+ * decorated by traced(), so that every node of every tree goes through
+ * the profiler, and is evaluated through evaluate(Profiler). One such
+ * evaluation in sampleEvery is traced: the time of each node, minus the
+ * time of its operands, is charged to its operator, its depth and its
+ * stack entry (index, and position in the sense of Measurable.size(),
+ * as in error messages). An operator node that returns without applying
+ * its operands was served from a cache. Every other evaluation costs
+ * one volatile read per node.
+ *
+ * Trees whose nodes evaluate their operands internally (OffHeapStore)
+ * show as one frame per stack entry.
+ **/
+public final class Profiler {
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+    // skips the thread local lookup while no traced evaluation runs
+    private static final AtomicInteger active = new AtomicInteger();
+    private static final int MAX_FRAMES = 128;
+
+    private final int sampleEvery;
+    private final AtomicLong evaluations = new AtomicLong();
+    private long sampled;
+    private final Map<Opcode, OperatorStats> operators = new EnumMap<>(Opcode.class);
+    private final Map<String, EntryStats> entries = new LinkedHashMap<>();
+    // collapsed stack -> self nanoseconds
+    private final Map<String, long[]> stacks = new LinkedHashMap<>();
+
+    private Profiler(int sampleEvery) {
+        this.sampleEvery = sampleEvery;
+    }
+
+    /*
+     * Traces one evaluation in sampleEvery, 1 to trace them all.
+     */
+    public static Profiler newInstance(int sampleEvery) {
+        if (sampleEvery < 1) throw new IllegalArgumentException("Sample rate must be positive");
+        return new Profiler(sampleEvery);
+    }
+
+    /**
+     * Decorates the commands of strategy so that traced evaluations see them.
+     **/
+    public <E> CacheStrategy<E> traced(CacheStrategy<E> strategy) {
+        return new CacheStrategy<E>() {
+            @Override
+            public Command<E> apply(Command<E> uncached) {
+                // commands coming back from undo are already traced
+                Command<E> command = uncached instanceof Traced ? ((Traced<E>) uncached).command : uncached;
+                return new Traced<>(strategy.apply(command));
+            }
+
+            @Override
+            public void release(List<Command<E>> commands) {
+                strategy.release(commands.stream()
+                        .map(c -> c instanceof Traced ? ((Traced<E>) c).command : c)
+                        .collect(Collectors.toList()));
+            }
+        };
+    }
+
+    /**
+     * Runs the evaluation, traced on the current thread if it is sampled.
+     **/
+    public <T> T run(Supplier<T> evaluation) {
+        if (evaluations.getAndIncrement() % sampleEvery != 0 || CURRENT.get() != null)
+            return evaluation.get();
+        Trace trace = new Trace();
+        CURRENT.set(trace);
+        active.incrementAndGet();
+        try {
+            return evaluation.get();
+        } finally {
+            active.decrementAndGet();
+            CURRENT.remove();
+            merge(trace);
+        }
+    }
+
+    public synchronized Report report() {
+        List<OperatorStats> byOperator = operators.values().stream()
+                .map(OperatorStats::copy)
+                .sorted(Comparator.comparingLong(OperatorStats::getSelfNanos).reversed())
+                .collect(Collectors.toList());
+        List<EntryStats> byEntry = entries.values().stream()
+                .map(EntryStats::copy)
+                .sorted(Comparator.comparingLong(EntryStats::getNanos).reversed())
+                .collect(Collectors.toList());
+        Map<String, Long> collapsed = new LinkedHashMap<>();
+        stacks.forEach((stack, nanos) -> collapsed.put(stack, nanos[0]));
+        return new Report(evaluations.get(), sampled, byOperator, byEntry, collapsed);
+    }
+
+    public synchronized void reset() {
+        sampled = 0;
+        evaluations.set(0);
+        operators.clear();
+        entries.clear();
+        stacks.clear();
+    }
+
+    private synchronized void merge(Trace trace) {
+        sampled++;
+        trace.operators.forEach((opcode, stats) -> operators.merge(opcode, stats, OperatorStats::add));
+        trace.entries.forEach((key, stats) -> entries.merge(key, stats, EntryStats::add));
+        trace.stacks.forEach((stack, nanos) -> stacks.merge(stack, nanos, (a, b) -> { a[0] += b[0]; return a; }));
+    }
+
+    /*
+     * Whether a traced evaluation runs on the current thread.
+     */
+    static boolean tracing() {
+        return active.get() != 0 && CURRENT.get() != null;
+    }
+
+    private static String name(Opcode opcode) {
+        return opcode.token() != null ? opcode.token() : opcode.name().toLowerCase();
+    }
+
+    /*
+     * Stack entry, or operand of one, seen by traced evaluations.
+     */
+    private static final class Traced<E> implements Command<E> {
+        private final Command<E> command;
+
+        private Traced(Command<E> command) {
+            this.command = command;
+        }
+
+        @Override
+        public Either<Exception, E> apply() {
+            if (active.get() == 0) return command.apply();
+            Trace trace = CURRENT.get();
+            return trace == null ? command.apply() : trace.apply(command);
+        }
+
+        @Override
+        public List<Command<E>> undo() {
+            return command.undo();
+        }
+
+        @Override
+        public int size() {
+            return command.size();
+        }
+
+        @Override
+        public long retainedBytes() {
+            return OBJECT_BYTES + command.retainedBytes();
+        }
+
+        @Override
+        public Opcode opcode() {
+            return command.opcode();
+        }
+    }
+
+    /*
+     * State of one traced evaluation, on one thread. Per depth:
+     * the time spent in operands and the number of operands applied
+     * of the node being evaluated there.
+     */
+    private static final class Trace {
+        private final Map<Opcode, OperatorStats> operators = new EnumMap<>(Opcode.class);
+        private final Map<String, EntryStats> entries = new LinkedHashMap<>();
+        private final Map<String, long[]> stacks = new LinkedHashMap<>();
+        private final StringBuilder path = new StringBuilder();
+        private long[] operandNanos = new long[16];
+        private int[] operandCount = new int[16];
+        private int depth;
+        private int entryIndex;
+        private long position;
+        private EntryStats entry;
+
+        private <E> Either<Exception, E> apply(Command<E> command) {
+            Opcode opcode = command.opcode();
+            int pathLength = path.length();
+            if (depth == 0) {
+                // stack entries are evaluated bottom up, sizes add up to their position
+                int index = entryIndex++, size = command.size();
+                position += size;
+                entry = entries.computeIfAbsent(index + "@" + position, k -> new EntryStats(index, position, name(opcode), size));
+                entry.evaluations++;
+                path.append("entry ").append(index).append(" at ").append(position).append(';');
+                path.append(name(opcode));
+            } else {
+                operandCount[depth - 1]++;
+                // deeper nodes are charged to the last frame, left-deep chains can be very deep
+                if (depth < MAX_FRAMES) path.append(';').append(name(opcode));
+            }
+            if (depth == operandNanos.length) {
+                operandNanos = Arrays.copyOf(operandNanos, depth * 2);
+                operandCount = Arrays.copyOf(operandCount, depth * 2);
+            }
+            operandNanos[depth] = 0;
+            operandCount[depth] = 0;
+            int level = depth++;
+            long start = System.nanoTime();
+            try {
+                return command.apply();
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                depth = level;
+                long self = elapsed - operandNanos[level];
+                boolean hit = opcode != Opcode.Literal && operandCount[level] == 0;
+                if (level > 0) operandNanos[level - 1] += elapsed;
+                else entry.nanos += elapsed;
+                if (hit) entry.hits++;
+                entry.nodes++;
+                operators.computeIfAbsent(opcode, o -> new OperatorStats(name(o))).record(self, level, hit);
+                stacks.computeIfAbsent(path.toString(), p -> new long[1])[0] += self;
+                path.setLength(pathLength);
+            }
+        }
+    }
+
+    /*
+     * Time of the nodes of one operator, excluding their operands.
+     */
+    public static final class OperatorStats {
+        private final String operator;
+        private long count;
+        private long hits;
+        private long selfNanos;
+        private long maxSelfNanos;
+        private long depthSum;
+        private int maxDepth;
+
+        private OperatorStats(String operator) {
+            this.operator = operator;
+        }
+
+        private void record(long self, int depth, boolean hit) {
+            count++;
+            if (hit) hits++;
+            selfNanos += self;
+            maxSelfNanos = Math.max(maxSelfNanos, self);
+            depthSum += depth;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private OperatorStats add(OperatorStats that) {
+            count += that.count;
+            hits += that.hits;
+            selfNanos += that.selfNanos;
+            maxSelfNanos = Math.max(maxSelfNanos, that.maxSelfNanos);
+            depthSum += that.depthSum;
+            maxDepth = Math.max(maxDepth, that.maxDepth);
+            return this;
+        }
+
+        private OperatorStats copy() {
+            return new OperatorStats(operator).add(this);
+        }
+
+        public String getOperator() { return operator; }
+        public long getCount() { return count; }
+        public long getHits() { return hits; }
+        public long getSelfNanos() { return selfNanos; }
+        public long getMaxSelfNanos() { return maxSelfNanos; }
+        public int getMaxDepth() { return maxDepth; }
+
+        public double meanDepth() {
+            return count == 0 ? 0 : (double) depthSum / count;
+        }
+    }
+
+    /*
+     * Time of one stack entry, its whole tree included.
+     */
+    public static final class EntryStats {
+        private final int index;
+        private final long position;
+        private final String operator;
+        private final int size;
+        private long evaluations;
+        private long nanos;
+        private long nodes;
+        private long hits;
+
+        private EntryStats(int index, long position, String operator, int size) {
+            this.index = index;
+            this.position = position;
+            this.operator = operator;
+            this.size = size;
+        }
+
+        private EntryStats add(EntryStats that) {
+            evaluations += that.evaluations;
+            nanos += that.nanos;
+            nodes += that.nodes;
+            hits += that.hits;
+            return this;
+        }
+
+        private EntryStats copy() {
+            return new EntryStats(index, position, operator, size).add(this);
+        }
+
+        public int getIndex() { return index; }
+        public long getPosition() { return position; }
+        public String getOperator() { return operator; }
+        public int getSize() { return size; }
+        public long getEvaluations() { return evaluations; }
+        public long getNanos() { return nanos; }
+        public long getNodes() { return nodes; }
+        public long getHits() { return hits; }
+    }
+
+    /**
+     * Point in time aggregate of the traced evaluations,
+     * operators and entries sorted by time, most expensive first.
+     **/
+    public static final class Report {
+        private final long evaluations;
+        private final long sampled;
+        private final List<OperatorStats> operators;
+        private final List<EntryStats> entries;
+        private final Map<String, Long> collapsed;
+
+        private Report(long evaluations, long sampled, List<OperatorStats> operators,
+                       List<EntryStats> entries, Map<String, Long> collapsed) {
+            this.evaluations = evaluations;
+            this.sampled = sampled;
+            this.operators = operators;
+            this.entries = entries;
+            this.collapsed = collapsed;
+        }
+
+        public long getEvaluations() { return evaluations; }
+        public long getSampled() { return sampled; }
+        public List<OperatorStats> getOperators() { return operators; }
+        public List<EntryStats> getEntries() { return entries; }
+
+        /*
+         * Self nanoseconds per call path, "entry 0 at 7;+;sqrt" for
+         * the sqrt operand of the + at the bottom of the stack.
+         */
+        public Map<String, Long> getCollapsed() { return collapsed; }
+
+        /**
+         * Writes one "frame;frame;frame nanoseconds" line per call path,
+         * the input format of flamegraph.pl and speedscope.
+         **/
+        public void writeCollapsed(Appendable out) throws IOException {
+            for (Map.Entry<String, Long> stack : collapsed.entrySet())
+                out.append(stack.getKey()).append(' ').append(Long.toString(stack.getValue())).append('\n');
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("%d of %d evaluations traced%n", sampled, evaluations));
+            out.append(String.format("%-10s %10s %10s %12s %12s %10s %9s%n",
+                    "operator", "count", "hits", "self us", "max us", "mean depth", "max depth"));
+            for (OperatorStats o : operators)
+                out.append(String.format("%-10s %10d %10d %12.1f %12.1f %10.1f %9d%n", o.operator, o.count, o.hits,
+                        o.selfNanos / 1e3, o.maxSelfNanos / 1e3, o.meanDepth(), o.maxDepth));
+            out.append(String.format("%-7s %9s %-10s %9s %12s %10s %10s%n",
+                    "entry", "position", "operator", "size", "total us", "nodes", "hits"));
+            for (EntryStats e : entries)
+                out.append(String.format("%-7d %9d %-10s %9d %12.1f %10d %10d%n", e.index, e.position, e.operator,
+                        e.size, e.nanos / 1e3, e.nodes, e.hits));
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package rpn;
+
+import io.vavr.control.Either;
+
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publisher of fine-grained calculator stack changes.
+ *
+ * Follows the reactive streams protocol (java.util.concurrent.Flow
+ * is not available on Java 8): a subscriber only receives as many
+ * events as it has requested through its subscription, the rest
+ * are buffered up to a bounded capacity.
+ **/
+public interface Publisher<E> {
+    void subscribe(Subscriber<E> subscriber);
+
+    static<E> Broadcaster<E> newInstance(int capacity) {
+        return new Broadcaster<>(capacity);
+    }
+
+    interface Subscriber<E> {
+        void onSubscribe(Subscription subscription);
+        void onEvent(Event<E> event);
+
+        /*
+         * Subscribers asking for results receive a Result (or Error)
+         * event after each Pushed event. The result is only computed
+         * when the event is delivered.
+         */
+        default boolean wantsResults() { return false; }
+    }
+
+    interface Subscription {
+        void request(long n);
+        void cancel();
+    }
+
+    /*
+     * A change on the calculator stack.
+     * Pushed: entry created at position.
+     * Popped: count entries removed from position onward.
+     * Result: entry at position evaluated successfully.
+     * Error: entry at position failed to evaluate, or the token at position
+     * (counted as in error messages, from 1) was rejected.
+     */
+    final class Event<E> {
+        public enum Type { Pushed, Popped, Result, Error }
+
+        private Type type;
+        private final int position;
+        private final int count;
+        private final Command<E> entry;
+        private Either<Exception, E> result;
+
+        private Event(Type type, int position, int count, Command<E> entry, Either<Exception, E> result) {
+            this.type = type;
+            this.position = position;
+            this.count = count;
+            this.entry = entry;
+            this.result = result;
+        }
+
+        public static<E> Event<E> pushed(int position, Command<E> entry) {
+            return new Event<>(Type.Pushed, position, 1, entry, null);
+        }
+
+        public static<E> Event<E> popped(int position, int count) {
+            return new Event<>(Type.Popped, position, count, null, null);
+        }
+
+        public static<E> Event<E> error(int position, Exception error) {
+            return new Event<>(Type.Error, position, 0, null, Either.left(error));
+        }
+
+        private static<E> Event<E> result(int position, Command<E> entry) {
+            return new Event<>(Type.Result, position, 1, entry, null);
+        }
+
+        /*
+         * Evaluates a pending result event, only called on delivery.
+         */
+        private Event<E> resolve() {
+            if (result == null && entry != null) {
+                result = entry.apply();
+                if (type == Type.Result && result.isLeft())
+                    type = Type.Error;
+            }
+            return this;
+        }
+
+        public Type getType() { return type; }
+
+        public int getPosition() { return position; }
+
+        public int getCount() { return count; }
+
+        /*
+         * The entry of a Pushed event, or null.
+         */
+        public Command<E> getEntry() { return entry; }
+
+        /*
+         * The result of a Result or Error event. For a Pushed event
+         * the entry is evaluated (and cached) on demand. Empty for
+         * a Popped event.
+         */
+        public Optional<Either<Exception, E>> getResult() {
+            if (result != null) return Optional.of(result);
+            return entry != null ? Optional.of(entry.apply()) : Optional.empty();
+        }
+    }
+
+    /*
+     * Fan out to all current subscribers, each with its own buffer and demand.
+     * Publishing is cheap when nobody subscribes.
+     */
+    final class Broadcaster<E> implements Publisher<E> {
+        private final int capacity;
+        private final CopyOnWriteArrayList<BufferedSubscription<E>> subscriptions = new CopyOnWriteArrayList<>();
+
+        private Broadcaster(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public void subscribe(Subscriber<E> subscriber) {
+            BufferedSubscription<E> subscription = new BufferedSubscription<>(this, subscriber);
+            subscriptions.add(subscription);
+            subscriber.onSubscribe(subscription);
+        }
+
+        public boolean hasSubscribers() {
+            return !subscriptions.isEmpty();
+        }
+
+        public void publish(Event<E> event) {
+            for (BufferedSubscription<E> subscription : subscriptions) {
+                subscription.offer(event);
+                if (event.getType() == Event.Type.Pushed && subscription.subscriber.wantsResults())
+                    subscription.offer(Event.result(event.getPosition(), event.getEntry()));
+                subscription.drain();
+            }
+        }
+    }
+
+    /*
+     * Standard work-in-progress drain loop: whichever thread raises wip
+     * from zero delivers, others only leave their event in the buffer.
+     */
+    final class BufferedSubscription<E> implements Subscription {
+        private final Broadcaster<E> broadcaster;
+        private final Subscriber<E> subscriber;
+        private final Queue<Event<E>> buffer = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger buffered = new AtomicInteger();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicReference<Exception> terminal = new AtomicReference<>();
+        // only read and written by the draining thread
+        private boolean terminated;
+        private volatile boolean cancelled;
+
+        private BufferedSubscription(Broadcaster<E> broadcaster, Subscriber<E> subscriber) {
+            this.broadcaster = broadcaster;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+            demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            broadcaster.subscriptions.remove(this);
+            buffer.clear();
+        }
+
+        private void offer(Event<E> event) {
+            if (cancelled) return;
+            if (buffered.incrementAndGet() > broadcaster.capacity) {
+                fail(new IllegalStateException("Subscriber buffer overflow, capacity " + broadcaster.capacity));
+                return;
+            }
+            buffer.offer(event);
+        }
+
+        /*
+         * Terminal error: the subscriber receives it regardless of demand,
+         * from the drain loop after any event being delivered. Only the
+         * first error is delivered.
+         */
+        private void fail(Exception e) {
+            terminal.compareAndSet(null, e);
+            cancel();
+            drain();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) return;
+            do {
+                while (!cancelled && demand.get() > 0) {
+                    Event<E> event = buffer.poll();
+                    if (event == null) break;
+                    buffered.decrementAndGet();
+                    demand.decrementAndGet();
+                    subscriber.onEvent(event.getType() == Event.Type.Result ? event.resolve() : event);
+                }
+                Exception e = terminal.get();
+                if (e != null && !terminated) {
+                    terminated = true;
+                    subscriber.onEvent(Event.error(-1, e));
+                }
+            } while (wip.decrementAndGet() != 0);
+        }
+    }
+}
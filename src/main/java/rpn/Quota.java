@@ -0,0 +1,151 @@
+package rpn;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memory limits of the Calculator sessions sharing the quota, on the
+ * estimate of Measurable.retainedBytes(): a limit per session and a
+ * limit on the total of all sessions.
+ *
+ * Only numbers are refused. Operators, undo and clear combine or drop
+ * entries (an operator adds a single node), so a session at its limit
+ * can still work its stack down. With Policy.Compact, a session at its
+ * limit first collapses its evaluated entries into literals of their
+ * values, see Calculator.
+ *
+ * Sessions check, then charge, so concurrent pushes may overshoot the
+ * global limit by an entry each. The bytes of a session are returned to
+ * the quota once it is garbage collected.
+ **/
+public final class Quota {
+    public enum Policy {
+        Reject, Compact
+    }
+
+    private final long sessionLimit;
+    private final long globalLimit;
+    private final Policy policy;
+    private final AtomicLong used = new AtomicLong();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    // keeps the accounts reachable until their session is collected
+    private final Set<Account> accounts = ConcurrentHashMap.newKeySet();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+    private Quota(long sessionLimit, long globalLimit, Policy policy) {
+        this.sessionLimit = sessionLimit;
+        this.globalLimit = globalLimit;
+        this.policy = policy;
+    }
+
+    public static Quota of(long sessionBytes, long globalBytes, Policy policy) {
+        if (sessionBytes < 0 || globalBytes < 0)
+            throw new IllegalArgumentException("Negative limit");
+        return new Quota(sessionBytes, globalBytes, policy);
+    }
+
+    /**
+     * No limits, usage is still accounted.
+     **/
+    public static Quota unlimited() {
+        return new Quota(Long.MAX_VALUE, Long.MAX_VALUE, Policy.Reject);
+    }
+
+    public long getSessionLimit() { return sessionLimit; }
+
+    public long getGlobalLimit() { return globalLimit; }
+
+    public Policy getPolicy() { return policy; }
+
+    /*
+     * Estimated bytes held by all live sessions.
+     */
+    public long getUsed() {
+        expunge();
+        return used.get();
+    }
+
+    public int getSessions() {
+        expunge();
+        return accounts.size();
+    }
+
+    /*
+     * Pushes refused so far.
+     */
+    public long getRefused() { return refused.sum(); }
+
+    public long getCompactions() { return compactions.sum(); }
+
+    @Override
+    public String toString() {
+        return String.format("used~%d sessions=%d refused=%d compactions=%d sessionLimit=%d globalLimit=%d",
+                getUsed(), getSessions(), getRefused(), getCompactions(), sessionLimit, globalLimit);
+    }
+
+    /*
+     * Opens the account of a session, closed when the session is collected.
+     */
+    Account open(Object session) {
+        expunge();
+        Account account = new Account(session);
+        accounts.add(account);
+        return account;
+    }
+
+    private void expunge() {
+        Object collectedAccount;
+        while ((collectedAccount = collected.poll()) != null) {
+            Account account = (Account) collectedAccount;
+            if (accounts.remove(account))
+                used.addAndGet(-account.bytes);
+        }
+    }
+
+    /*
+     * Usage of one session, updated by the session's thread.
+     */
+    final class Account extends WeakReference<Object> {
+        private volatile long bytes;
+
+        private Account(Object session) {
+            super(session, collected);
+        }
+
+        long getBytes() { return bytes; }
+
+        Policy getPolicy() { return policy; }
+
+        /*
+         * Whether both limits have room for more bytes.
+         */
+        boolean admits(long more) {
+            expunge();
+            return bytes + more <= sessionLimit && used.get() + more <= globalLimit;
+        }
+
+        /*
+         * Sets the usage of the session.
+         */
+        void update(long now) {
+            long delta = now - bytes;
+            if (delta != 0) {
+                bytes = now;
+                used.addAndGet(delta);
+            }
+        }
+
+        void refused() {
+            refused.increment();
+        }
+
+        void compacted() {
+            compactions.increment();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package rpn;
+
+import io.vavr.control.Either;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.List;
+
+/**
+ * Garbage-free display of results.
+ *
+ * Numbers that fit a long are formatted into a thread-local scratch
+ * buffer with the display rules of Number: truncated (ROUND_DOWN) to the
+ * display precision, trailing zeros dropped, no grouping, and "-0" for
+ * a negative value that truncates to zero, exactly as DecimalFormat
+ * prints it. The scratch is copied out in bulk to the sinks that
+ * support it (StringBuilder, Writer, CharBuffer and ByteBuffer).
+ **/
+final class Renderer {
+    private static final long[] POWERS_OF_TEN = new long[19];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+    // sign, 19 digits, point and up to 18 leading fraction zeros
+    private static final int SCRATCH_CHARS = 48;
+    static final int MAX_DISPLAY_PRECISION = POWERS_OF_TEN.length - 1;
+
+    private static final ThreadLocal<char[]> SCRATCH = ThreadLocal.withInitial(() -> new char[SCRATCH_CHARS]);
+    private static final ThreadLocal<ByteSink> BYTE_SINK = ThreadLocal.withInitial(ByteSink::new);
+
+    private Renderer() {}
+
+    /*
+     * Results separated by single spaces, failures by their message.
+     */
+    static<E extends Operatable<E>> void render(List<Either<Exception, E>> results, Appendable out) throws IOException {
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) out.append(' ');
+            Either<Exception, E> r = results.get(i);
+            if (r.isLeft()) out.append(r.getLeft().getMessage());
+            else r.get().render(out);
+        }
+    }
+
+    /*
+     * Same as render(results, Appendable), UTF-8 encoded into out.
+     * Throws BufferOverflowException if out runs out of room,
+     * leaving whatever fitted.
+     */
+    static<E extends Operatable<E>> void render(List<Either<Exception, E>> results, ByteBuffer out) {
+        ByteSink sink = BYTE_SINK.get();
+        sink.out = out;
+        try {
+            render(results, sink);
+            sink.finish();
+        } catch (IOException e) {
+            // ByteSink doesn't throw
+            throw new IllegalStateException(e);
+        } finally {
+            sink.out = null;
+            sink.highSurrogate = 0;
+        }
+    }
+
+    /*
+     * Appends unscaled * 10^-scale in display form, negative tells the sign
+     * of the value before any truncation (for "-0").
+     * 0 <= scale and displayPrecision <= MAX_DISPLAY_PRECISION.
+     */
+    static void append(Appendable out, long unscaled, int scale, int displayPrecision, boolean negative)
+            throws IOException {
+        char[] scratch = SCRATCH.get();
+        int start = format(unscaled, scale, displayPrecision, negative, scratch);
+        write(out, scratch, start, scratch.length);
+    }
+
+    static String toString(long unscaled, int scale, int displayPrecision, boolean negative) {
+        char[] scratch = SCRATCH.get();
+        int start = format(unscaled, scale, displayPrecision, negative, scratch);
+        return new String(scratch, start, scratch.length - start);
+    }
+
+    /*
+     * Formats right-aligned into chars, returns the start index.
+     * Digits are taken off the negative magnitude, so Long.MIN_VALUE is fine.
+     */
+    private static int format(long unscaled, int scale, int displayPrecision, boolean negative, char[] chars) {
+        if (scale > displayPrecision) {
+            // division truncates toward zero, which is ROUND_DOWN
+            unscaled /= POWERS_OF_TEN[scale - displayPrecision];
+            scale = displayPrecision;
+        }
+        while (scale > 0 && unscaled % 10 == 0) {
+            unscaled /= 10;
+            scale--;
+        }
+        long n = unscaled > 0 ? -unscaled : unscaled;
+        int i = chars.length;
+        for (int digits = 0; digits < scale; digits++) {
+            chars[--i] = (char) ('0' - n % 10);
+            n /= 10;
+        }
+        if (scale > 0) chars[--i] = '.';
+        do {
+            chars[--i] = (char) ('0' - n % 10);
+            n /= 10;
+        } while (n != 0);
+        if (negative) chars[--i] = '-';
+        return i;
+    }
+
+    private static void write(Appendable out, char[] chars, int start, int end) throws IOException {
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(chars, start, end - start);
+        } else if (out instanceof Writer) {
+            ((Writer) out).write(chars, start, end - start);
+        } else if (out instanceof CharBuffer) {
+            ((CharBuffer) out).put(chars, start, end - start);
+        } else if (out instanceof ByteSink) {
+            // display digits are ASCII
+            ByteBuffer bytes = ((ByteSink) out).out;
+            for (int i = start; i < end; i++)
+                bytes.put((byte) chars[i]);
+        } else {
+            for (int i = start; i < end; i++)
+                out.append(chars[i]);
+        }
+    }
+
+    /*
+     * UTF-8 encoding Appendable over a ByteBuffer, reused per thread.
+     */
+    private static final class ByteSink implements Appendable {
+        private ByteBuffer out;
+        private char highSurrogate;
+
+        @Override
+        public Appendable append(CharSequence csq) {
+            if (csq == null) csq = "null";
+            return append(csq, 0, csq.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            if (csq == null) csq = "null";
+            for (int i = start; i < end; i++)
+                append(csq.charAt(i));
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int cp = Character.toCodePoint(high, c);
+                    out.put((byte) (0xF0 | cp >> 18));
+                    out.put((byte) (0x80 | cp >> 12 & 0x3F));
+                    out.put((byte) (0x80 | cp >> 6 & 0x3F));
+                    out.put((byte) (0x80 | cp & 0x3F));
+                    return this;
+                }
+                out.put((byte) '?');
+            }
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | c >> 6));
+                out.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | c >> 12));
+                out.put((byte) (0x80 | c >> 6 & 0x3F));
+                out.put((byte) (0x80 | c & 0x3F));
+            }
+            return this;
+        }
+
+        /*
+         * Unpaired surrogates become '?', like the JDK encoder's replacement.
+         */
+        private void finish() {
+            if (highSurrogate != 0) out.put((byte) '?');
+            highSurrogate = 0;
+        }
+    }
+}
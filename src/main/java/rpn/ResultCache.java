@@ -0,0 +1,233 @@
+package rpn;
+
+import io.vavr.control.Either;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Process-wide cache of operator results, addressed by content:
+ * the opcode and the operand values, so the same subexpression
+ * computed in any session is only computed once. Operand equality
+ * includes the Operatable precision (see Number.equals()).
+ *
+ * Entries are spread over lock stripes by key hash; each stripe is
+ * an LRU map bounded to its share of the capacity. Lookups never
+ * hold a lock while computing. Transient failures are not cached.
+ **/
+public final class ResultCache<E> {
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final int DEFAULT_STRIPES = 64;
+    // rough retained size of one entry: map entry, key, result and two operand numbers
+    private static final int ENTRY_BYTES = 320;
+    private static final ResultCache<?> SHARED = newInstance(DEFAULT_CAPACITY, DEFAULT_STRIPES);
+
+    private final List<Stripe> stripes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+
+    private ResultCache(int capacity, int stripeCount) {
+        stripes = new ArrayList<>(stripeCount);
+        int perStripe = Math.max(1, capacity / stripeCount);
+        for (int i = 0; i < stripeCount; i++)
+            stripes.add(new Stripe(perStripe));
+    }
+
+    /**
+     * The cache shared by every session of the process.
+     * Keys of different Operatable types never compare equal.
+     **/
+    @SuppressWarnings("unchecked")
+    public static<E> ResultCache<E> shared() {
+        return (ResultCache<E>) SHARED;
+    }
+
+    /*
+     * stripes is rounded up to a power of two.
+     */
+    public static<E> ResultCache<E> newInstance(int capacity, int stripes) {
+        if (capacity < 1 || stripes < 1) throw new IllegalArgumentException("Capacity and stripes must be positive");
+        int stripeCount = 1;
+        while (stripeCount < stripes)
+            stripeCount <<= 1;
+        return new ResultCache<>(capacity, stripeCount);
+    }
+
+    public Optional<Either<Exception, E>> get(Opcode opcode, E left, E right) {
+        Key key = new Key(opcode, left, right);
+        Either<Exception, E> result = stripe(key).get(key);
+        if (result == null) {
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        return Optional.of(result);
+    }
+
+    /*
+     * right is null for unary operators.
+     */
+    public void put(Opcode opcode, E left, E right, Either<Exception, E> result) {
+        if (result.isLeft() && Failure.isTransient(result.getLeft())) return;
+        Key key = new Key(opcode, left, right);
+        stripe(key).put(key, result);
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes)
+            stripe.clear();
+    }
+
+    public Stats stats() {
+        long entries = 0;
+        for (Stripe stripe : stripes)
+            entries += stripe.size();
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), contended.sum(), entries);
+    }
+
+    private Stripe stripe(Key key) {
+        int h = key.hash;
+        return stripes.get((h ^ (h >>> 16)) & (stripes.size() - 1));
+    }
+
+    /*
+     * Point in time counters of a cache.
+     * contended counts accesses that had to wait for a stripe lock.
+     */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long contended;
+        private final long entries;
+
+        private Stats(long hits, long misses, long evictions, long contended, long entries) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.contended = contended;
+            this.entries = entries;
+        }
+
+        public long getHits() { return hits; }
+        public long getMisses() { return misses; }
+        public long getEvictions() { return evictions; }
+        public long getContended() { return contended; }
+        public long getEntries() { return entries; }
+
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        /*
+         * Estimated heap retained by the entries.
+         */
+        public long estimatedBytes() {
+            return entries * ENTRY_BYTES;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d hitRate=%.3f evictions=%d contended=%d entries=%d bytes~%d",
+                    hits, misses, hitRate(), evictions, contended, entries, estimatedBytes());
+        }
+    }
+
+    private static final class Key {
+        private final Opcode opcode;
+        private final Object left;
+        private final Object right;
+        private final int hash;
+
+        private Key(Opcode opcode, Object left, Object right) {
+            this.opcode = opcode;
+            this.left = left;
+            this.right = right;
+            this.hash = (opcode.ordinal() * 31 + left.hashCode()) * 31 + (right == null ? 0 : right.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return hash == that.hash && opcode == that.opcode && left.equals(that.left)
+                    && (right == null ? that.right == null : right.equals(that.right));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /*
+     * LRU map guarded by its own lock.
+     */
+    private final class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<Key, Either<Exception, E>> entries;
+
+        private Stripe(int capacity) {
+            entries = new LinkedHashMap<Key, Either<Exception, E>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Either<Exception, E>> eldest) {
+                    if (size() <= capacity) return false;
+                    evictions.increment();
+                    return true;
+                }
+            };
+        }
+
+        private Either<Exception, E> get(Key key) {
+            lock();
+            try {
+                return entries.get(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void put(Key key, Either<Exception, E> result) {
+            lock();
+            try {
+                entries.put(key, result);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void clear() {
+            lock();
+            try {
+                entries.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int size() {
+            lock();
+            try {
+                return entries.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void lock() {
+            if (!lock.tryLock()) {
+                contended.increment();
+                lock.lock();
+            }
+        }
+    }
+}
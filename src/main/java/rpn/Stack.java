@@ -28,6 +28,12 @@ public interface Stack<E> {
     int allSize();
     Stream<E> stream();
 
+    /*
+     * Estimated heap held by the entries, see Measurable.retainedBytes(),
+     * kept up to date on push and pop like allSize().
+     */
+    long retainedBytes();
+
     static<M extends Measurable> Stack<M> newInstance() {
         return new Stack.PreliminaryStack<>();
     }
@@ -36,6 +42,11 @@ public interface Stack<E> {
     final class PreliminaryStack<E extends Measurable> implements Stack<E> {
         private ConcurrentLinkedDeque<E> internal;
         private final Lock lock = new ReentrantLock();
+        // counts and element sizes are kept on push/pop instead of on every size()
+        // and allSize() call, ConcurrentLinkedDeque.size() walks the whole deque
+        private volatile int size;
+        private volatile int allSize;
+        private volatile long retainedBytes;
 
         private PreliminaryStack() {
             internal = new ConcurrentLinkedDeque<>();
@@ -43,12 +54,17 @@ public interface Stack<E> {
 
         @Override
         public int size() {
-            return internal.size();
+            return size;
         }
 
         @Override
         public int allSize() {
-            return stream().mapToInt(e -> e.size()).sum();
+            return allSize;
+        }
+
+        @Override
+        public long retainedBytes() {
+            return retainedBytes;
         }
 
         @Override
@@ -61,8 +77,18 @@ public interface Stack<E> {
             Iterator<E> iter = e.iterator();
             try {
                 lock.lock();
-                while(iter.hasNext())
-                    internal.offerLast(iter.next());
+                int added = 0, count = 0;
+                long bytes = 0;
+                while(iter.hasNext()) {
+                    E next = iter.next();
+                    internal.offerLast(next);
+                    added += next.size();
+                    bytes += next.retainedBytes();
+                    count++;
+                }
+                allSize += added;
+                retainedBytes += bytes;
+                size += count;
             } finally {
                 lock.unlock();
             }
@@ -75,10 +101,21 @@ public interface Stack<E> {
             List<E> result = new ArrayList<>(n);
             try {
                 lock.lock();
+                if (n > size) return Arrays.asList();
+                int removed = 0;
+                long bytes = 0;
                 while(count < n) {
-                    result.add(internal.pollLast());
+                    E last = internal.pollLast();
+                    result.add(last);
+                    if (last != null) {
+                        removed += last.size();
+                        bytes += last.retainedBytes();
+                    }
                     count++;
                 }
+                allSize -= removed;
+                retainedBytes -= bytes;
+                size -= n;
             } finally {
                 lock.unlock();
             }
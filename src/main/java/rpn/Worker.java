@@ -0,0 +1,50 @@
+package rpn;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Worker process of a Coordinator.
+ *
+ * Connects back to the coordinator on the loopback interface, then
+ * decodes commands, evaluates them and answers with their results,
+ * in request order, until the coordinator closes the connection.
+ *
+ * Usage: Worker <port>
+ **/
+public final class Worker {
+    private Worker() {}
+
+    public static void main(String[] args) throws IOException {
+        serve(Integer.parseInt(args[0]), CommandCodec.forNumber());
+    }
+
+    /*
+     * Serves one coordinator, returns once it disconnects.
+     */
+    public static<E extends Operatable<E>> void serve(int port, CommandCodec<E> codec) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                Command<E> command;
+                try {
+                    command = codec.decode(in);
+                } catch (EOFException e) {
+                    return;
+                }
+                codec.encodeResult(command.apply(), out);
+                // answers are flushed once the pending requests are drained
+                if (in.available() == 0)
+                    out.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package test.rpn;
+
+import org.openjdk.jmh.annotations.*;
+import rpn.BatchRunner;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * BatchRunner over a file of 200K lines, by number of workers.
+ * Lines per second should grow close to linearly up to the core count.
+ *
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main BatchRunnerBenchmark"
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchRunnerBenchmark {
+    private static final int LINES = 200_000;
+
+    @Param({"1", "2", "4"})
+    int workers;
+
+    private Path input;
+
+    @Setup
+    public void setup() throws IOException {
+        input = Files.createTempFile("batch", ".rpn");
+        Random random = new Random(42);
+        try (BufferedWriter writer = Files.newBufferedWriter(input, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < LINES; i++) {
+                writer.write(random.nextInt(1000) + " " + random.nextInt(1000) + " + sqrt "
+                        + (random.nextInt(100) + 1) + " / 3 * 1.5 -");
+                writer.newLine();
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(input);
+    }
+
+    @Benchmark
+    public BatchRunner.Summary run() throws IOException {
+        return BatchRunner.run(input, new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {}
+
+            @Override
+            public void flush() {}
+
+            @Override
+            public void close() {}
+        }, workers);
+    }
+}
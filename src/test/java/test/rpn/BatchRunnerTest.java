@@ -0,0 +1,58 @@
+package test.rpn;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import rpn.BatchRunner;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchRunnerTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testCanEvaluateLinesInOrder() throws IOException {
+        Path input = write("5 2\r\n2 sqrt\n\n1 2 3 * 5 + * * 6 5\n20 0 /\n4 3 -");
+        StringWriter output = new StringWriter();
+        BatchRunner.Summary summary = BatchRunner.run(input, output, 2, 8);
+        assertEquals(6, summary.getLines());
+        assertEquals(1, summary.getErrors());
+        assertEquals(Arrays.asList(
+                "5 2",
+                "1.4142135623",
+                "",
+                "Error at offset 13: Operator '*' (position 8), insufficient parameter | 11",
+                "Division by zero",
+                "1"), Arrays.asList(output.toString().split("\n", -1)).subList(0, 6));
+    }
+
+    @Test
+    public void testCanSplitIntoManyRanges() throws IOException {
+        StringBuilder text = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            text.append(i).append(" 1 +\n");
+            expected.add(Integer.toString(i + 1));
+        }
+        StringWriter output = new StringWriter();
+        BatchRunner.Summary summary = BatchRunner.run(write(text.toString()), output, 4, 100);
+        assertEquals(2000, summary.getLines());
+        assertEquals(0, summary.getErrors());
+        assertEquals(String.join("\n", expected) + "\n", output.toString());
+    }
+
+    private Path write(String text) throws IOException {
+        Path input = directory.resolve("input.rpn");
+        Files.write(input, text.getBytes(StandardCharsets.UTF_8));
+        return input;
+    }
+}
@@ -4,10 +4,20 @@ import io.vavr.control.Either;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class CachingStrategyTest {
     private CacheStrategy<String> strategy;
@@ -29,6 +39,168 @@ public class CachingStrategyTest {
         assertEquals(2, command.size());
     }
 
+    @Test
+    public void testCanSpeculateExecution() throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Command<String> command = newCommand("test");
+        Command<String> speculative = CacheStrategy.<String>speculative(executor).apply(command);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(1, command.size());
+        assertEquals("test", speculative.apply().get());
+        assertEquals(1, command.size());
+    }
+
+    @Test
+    public void testCanCancelReleasedSpeculation() throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch latch = new CountDownLatch(1);
+        executor.submit(() -> { latch.await(); return null; });
+        CacheStrategy<String> speculative = CacheStrategy.speculative(executor);
+        Command<String> command = newCommand("test");
+        speculative.release(Arrays.asList(speculative.apply(command)));
+        latch.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(0, command.size());
+    }
+
+    @Test
+    public void testCanShareResultsAcrossSessions() {
+        ResultCache<Number> results = ResultCache.newInstance(1024, 4);
+        Calculator<Number> first = Calculator.getInstance(Number::of, Stack::newInstance, CacheStrategy.shared(results));
+        Calculator<Number> second = Calculator.getInstance(Number::of, Stack::newInstance, CacheStrategy.shared(results));
+        first.push("2", "sqrt", "3", "4", "+", "1", "0", "/");
+        assertEquals(3, first.evaluate().size());
+        assertEquals(0, results.stats().getHits());
+        assertEquals(3, results.stats().getMisses());
+        assertEquals(3, results.stats().getEntries());
+
+        second.push("2", "sqrt", "3", "4", "+", "*", "1", "0", "/");
+        List<Either<Exception, Number>> result = second.evaluate();
+        assertEquals("9.8994949366", result.get(0).get().toString());
+        assertEquals(Failure.DIVISION_BY_ZERO, result.get(1).getLeft());
+        ResultCache.Stats stats = results.stats();
+        assertEquals(3, stats.getHits());
+        assertEquals(4, stats.getMisses());
+        assertEquals(4, stats.getEntries());
+        assertEquals(3.0 / 7, stats.hitRate(), 1e-9);
+        assertTrue(stats.estimatedBytes() > 0);
+    }
+
+    @Test
+    public void testCanEvictSharedResults() {
+        ResultCache<Number> results = ResultCache.newInstance(2, 1);
+        Number one = Number.of("1").get();
+        results.put(Opcode.Sqrt, one, null, Either.right(one));
+        results.put(Opcode.Add, one, one, Either.right(Number.of("2").get()));
+        results.get(Opcode.Sqrt, one, null);
+        results.put(Opcode.Multiply, one, one, Either.right(one));
+        results.put(Opcode.Divide, one, one, Either.left(Failure.TIMEOUT));
+        assertTrue(results.get(Opcode.Sqrt, one, null).isPresent());
+        assertFalse(results.get(Opcode.Add, one, one).isPresent());
+        assertFalse(results.get(Opcode.Divide, one, one).isPresent());
+        assertEquals(1, results.stats().getEvictions());
+        assertFalse(results.get(Opcode.Sqrt, Number.of("1", 15, 5).get(), null).isPresent());
+    }
+
+    @Test
+    public void testCanMemoizeInNodes() throws InterruptedException {
+        Counted counted = new Counted();
+        CommandFactory<Counted> factory = CommandFactory.memoized();
+        Command<Counted> quotient = factory.binary(Opcode.Divide, factory.literal(counted), factory.literal(counted));
+        Command<Counted> sum = factory.binary(Opcode.Add, quotient, factory.unary(Opcode.Sqrt, quotient));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Either<Exception, Counted>>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            results.add(executor.submit(() -> { start.await(); return sum.apply(); }));
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        for (Future<Either<Exception, Counted>> result : results)
+            assertSame(sum.apply(), getUnchecked(result));
+        assertEquals(1, counted.divisions.get());
+        assertEquals(1, counted.sqrts.get());
+        assertTrue(counted.additions.get() >= 1 && counted.additions.get() <= 8);
+
+        Command<Counted> uncached = CommandFactory.<Counted>heap().unary(Opcode.Sqrt, factory.literal(counted));
+        uncached.apply();
+        uncached.apply();
+        assertEquals(3, counted.sqrts.get());
+    }
+
+    @Test
+    public void testCanMemoizeCustomOperators() {
+        Counted counted = new Counted();
+        CommandFactory<Counted> factory = CommandFactory.memoized();
+        Command<Counted> root = factory.unary(Counted::sqrt, factory.literal(counted));
+        Command<Counted> twice = factory.binary(Counted::add, root, root);
+        assertSame(counted, twice.apply().get());
+        assertSame(counted, twice.apply().get());
+        assertEquals(1, counted.sqrts.get());
+        assertEquals(1, counted.additions.get());
+        assertEquals(Opcode.Custom, twice.opcode());
+        assertEquals(5, twice.size());
+        assertEquals(Arrays.asList(root, root), twice.undo());
+
+        Command<Counted> uncached = CommandFactory.<Counted>heap().unary(Counted::sqrt, factory.literal(counted));
+        uncached.apply();
+        uncached.apply();
+        assertEquals(3, counted.sqrts.get());
+    }
+
+    @Test
+    public void testCanEvaluateMemoizedCalculator() {
+        Calculator<Number> rpn = Calculator.getMemoizedInstance(Number::of, Stack::newInstance);
+        rpn.push("1", "2", "3", "*", "5", "+", "*", "2", "sqrt", "0", "/");
+        List<Either<Exception, Number>> result = rpn.evaluate();
+        assertEquals("11", result.get(0).get().toString());
+        assertEquals(Failure.DIVISION_BY_ZERO, result.get(1).getLeft());
+        assertSame(result.get(0), rpn.evaluate().get(0));
+    }
+
+    private static <T> T getUnchecked(Future<T> future) {
+        try {
+            return future.get();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Operatable counting its computations, every result is itself.
+     */
+    private static final class Counted implements Operatable<Counted> {
+        private final AtomicInteger additions = new AtomicInteger();
+        private final AtomicInteger divisions = new AtomicInteger();
+        private final AtomicInteger sqrts = new AtomicInteger();
+
+        @Override
+        public Counted add(Counted arg) {
+            additions.incrementAndGet();
+            return this;
+        }
+
+        @Override
+        public Counted substract(Counted arg) { return this; }
+
+        @Override
+        public Counted divide(Counted arg) {
+            divisions.incrementAndGet();
+            return this;
+        }
+
+        @Override
+        public Counted multiply(Counted arg) { return this; }
+
+        @Override
+        public Counted sqrt() {
+            sqrts.incrementAndGet();
+            return this;
+        }
+    }
+
     private Command<String> newCommand(String test) {
         return new Command<String>() {
             int count = 0;
@@ -3,9 +3,21 @@ package test.rpn;
 import io.vavr.control.Either;
 import rpn.*;
 
+import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -76,7 +88,7 @@ public class CalculatorTest {
     public void testCanEvaluateExample8() {
         Optional<Exception> maybeException = rpn.push("1", "2", "3", "*", "5", "+", "*", "*", "6", "5");
         assertTrue(maybeException.isPresent());
-        assertEquals(IllegalArgumentException.class, maybeException.get().getClass());
+        assertEquals(Failure.Code.InsufficientParameter, ((Failure) maybeException.get()).getCode());
         assertEquals("Operator '*' (position 8), insufficient parameter", maybeException.get().getMessage());
         assertEquals(Arrays.asList("11"), rpn.evaluate().stream().map(n -> n.get().toString()).collect(Collectors.toList()));
     }
@@ -85,7 +97,7 @@ public class CalculatorTest {
     public void testCanUndoNothing() {
         Optional<Exception> maybeException = rpn.push("undo", "3", "4");
         assertTrue(maybeException.isPresent());
-        assertEquals(IllegalArgumentException.class, maybeException.get().getClass());
+        assertEquals(Failure.Code.InsufficientParameter, ((Failure) maybeException.get()).getCode());
         assertEquals("Operator 'undo' (position 1), insufficient parameter", maybeException.get().getMessage());
         assertEquals(Arrays.asList(), rpn.evaluate().stream().map(n -> n.get().toString()).collect(Collectors.toList()));
     }
@@ -99,12 +111,12 @@ public class CalculatorTest {
     public void testCanEvaluateInvalidOperator() {
         Optional<Exception> maybeException = rpn.push("");
         assertTrue(maybeException.isPresent());
-        assertEquals(IllegalArgumentException.class, maybeException.get().getClass());
+        assertEquals(Failure.Code.UnknownToken, ((Failure) maybeException.get()).getCode());
         assertEvaluation(Arrays.asList("100"), "20", "5", "*");
         assertEvaluation(Arrays.asList("20", "5"), "undo");
         maybeException = rpn.push("null");
         assertTrue(maybeException.isPresent());
-        assertEquals(IllegalArgumentException.class, maybeException.get().getClass());
+        assertEquals(Failure.Code.UnknownToken, ((Failure) maybeException.get()).getCode());
     }
 
     @Test
@@ -113,11 +125,406 @@ public class CalculatorTest {
         assertFalse(maybeException.isPresent());
         List<Either<Exception, Number>> result = rpn.evaluate();
         assertEquals(2, result.size());
-        assertEquals(NumberFormatException.class, result.get(0).getLeft().getClass());
+        assertEquals(Failure.Code.NegativeSqrt, ((Failure) result.get(0).getLeft()).getCode());
         assertEquals("30", result.get(1).get().toString());
         assertEvaluation(Arrays.asList("4", "30"), "undo", "undo", "undo", "undo", "undo", "undo", "-1", "*", "sqrt", "2", "*", "6", "5", "*");
     }
 
+    @Test
+    public void testCanFailWithoutStackTrace() {
+        Optional<Exception> maybeException = rpn.push("1", "0", "/", "x");
+        assertTrue(maybeException.isPresent());
+        assertEquals("Unknown element or operator: x", maybeException.get().getMessage());
+        assertEquals(4, ((Failure) maybeException.get()).getPosition());
+        assertEquals(0, maybeException.get().getStackTrace().length);
+        Exception division = rpn.evaluate().get(0).getLeft();
+        assertSame(Failure.DIVISION_BY_ZERO, division);
+        assertEquals(0, division.getStackTrace().length);
+    }
+
+    @Test
+    public void testCanResumeBudgetedEvaluation() {
+        assertFalse(rpn.push("1", "2", "+", "3", "*", "5").isPresent());
+        List<Either<Exception, Number>> result = rpn.evaluate(Budget.of(1, TimeUnit.MINUTES, 1));
+        assertEquals(Failure.BUDGET_EXCEEDED, result.get(0).getLeft());
+        assertEquals("5", result.get(1).get().toString());
+        result = rpn.evaluate(Budget.of(1, TimeUnit.MINUTES, 1));
+        assertEquals("9", result.get(0).get().toString());
+        assertEquals("5", result.get(1).get().toString());
+    }
+
+    @Test
+    public void testCanTimeoutAndCancelEvaluation() {
+        assertFalse(rpn.push("4", "sqrt").isPresent());
+        assertEquals(Failure.TIMEOUT, rpn.evaluate(Budget.of(0, TimeUnit.NANOSECONDS)).get(0).getLeft());
+        Budget budget = Budget.of(1, TimeUnit.MINUTES);
+        budget.cancel();
+        assertEquals(Failure.CANCELLED, rpn.evaluate(budget).get(0).getLeft());
+        assertEquals("2", rpn.evaluate().get(0).get().toString());
+    }
+
+    @Test
+    public void testCanEvaluateSpeculatively() {
+        rpn = Calculator.getInstance(Number::of, Stack::newInstance, CacheStrategy.<Number>speculative(2, 64));
+        assertEvaluation(Arrays.asList("5", "4", "3", "2"), "5", "4", "3", "2");
+        assertEvaluation(Arrays.asList("20"), "undo", "undo", "*");
+        assertEvaluation(Arrays.asList("100"), "5", "*");
+        assertEvaluation(Arrays.asList("20", "5"), "undo");
+        assertEvaluation(Arrays.asList("3"), "clear", "9", "sqrt");
+    }
+
+    @Test
+    public void testCanPublishStackChanges() {
+        List<String> events = new ArrayList<>();
+        subscriber(events, Long.MAX_VALUE, false);
+        rpn.push("5", "2", "-", "undo", "clear", "x");
+        assertEquals(Arrays.asList("Pushed 0", "Pushed 1", "Popped 0/2", "Pushed 0", "Popped 0/1",
+                "Pushed 0", "Pushed 1", "Popped 0/2", "Error 1"), events);
+        // a rejected token is reported at its position, not the stack's
+        rpn.push("1", "2", "x");
+        assertEquals(Arrays.asList("Pushed 0", "Pushed 1", "Error 3"), events.subList(9, events.size()));
+        assertFalse(Publisher.Event.popped(0, 1).getResult().isPresent());
+    }
+
+    @Test
+    public void testCanPublishResultsOnDemand() {
+        List<String> events = new ArrayList<>();
+        Publisher.Subscription subscription = subscriber(events, 1, true).subscription;
+        assertEquals(Arrays.asList(), events);
+        rpn.push("4", "sqrt", "-1", "sqrt");
+        assertEquals(Arrays.asList("Pushed 0"), events);
+        subscription.request(6);
+        assertEquals(Arrays.asList("Pushed 0", "Result 0 4", "Popped 0/1", "Pushed 0", "Result 0 2",
+                "Pushed 1", "Result 1 -1"), events);
+        subscription.request(3);
+        assertEquals(Arrays.asList("Popped 1/1", "Pushed 1", "Error 1"), events.subList(7, events.size()));
+    }
+
+    @Test
+    public void testCanFailSubscriptionAfterCurrentEvent() {
+        List<String> events = new ArrayList<>();
+        RecordingSubscriber subscriber = new RecordingSubscriber(events, Long.MAX_VALUE, false) {
+            @Override
+            public void onEvent(Publisher.Event<Number> event) {
+                super.onEvent(event);
+                if (event.getType() == Publisher.Event.Type.Pushed) {
+                    subscription.request(0);
+                    events.add("Done " + event.getPosition());
+                }
+            }
+        };
+        rpn.subscribe(subscriber);
+        rpn.push("1", "2");
+        subscriber.subscription.request(-1);
+        assertEquals(Arrays.asList("Pushed 0", "Done 0", "Error -1"), events);
+    }
+
+    @Test
+    public void testCanPushAllPipelined() {
+        StringBuilder input = new StringBuilder();
+        List<String> tokens = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            String[] line = {Integer.toString(i), "2", "*", "sqrt", i % 3 == 0 ? "undo" : "1.5"};
+            tokens.addAll(Arrays.asList(line));
+            input.append(String.join(i % 2 == 0 ? " " : "\t", line)).append(i % 5 == 0 ? "\n" : "  ");
+        }
+        assertFalse(rpn.pushAll(new StringReader(input.toString())).isPresent());
+        Calculator<Number> sequential = Calculator.getInstance(Number::of, Stack::newInstance);
+        assertFalse(sequential.push(tokens.toArray(new String[0])).isPresent());
+        assertEquals(toStrings(sequential.evaluate()), toStrings(rpn.evaluate()));
+    }
+
+    @Test
+    public void testCanReportPipelinedErrorPositions() {
+        String input = "1 2 3 * 5 + * * 6 5";
+        Optional<Exception> maybeException = rpn.pushAll(new StringReader(input));
+        assertEquals("Operator '*' (position 8), insufficient parameter", maybeException.get().getMessage());
+        assertEquals(Arrays.asList("11"), toStrings(rpn.evaluate()));
+
+        Calculator<Number> sequential = Calculator.getInstance(Number::of, Stack::newInstance);
+        Exception expected = sequential.push("clear", "4", "sqrt", "5", "x", "2").get();
+        Exception actual = rpn.pushAll(new StringReader("clear 4 sqrt\n5 x 2")).get();
+        assertEquals(((Failure) expected).getPosition(), ((Failure) actual).getPosition());
+        assertEquals(expected.getMessage(), actual.getMessage());
+        assertEquals(toStrings(sequential.evaluate()), toStrings(rpn.evaluate()));
+    }
+
+    @Test
+    public void testCanStopPipelineOnUncheckedException() {
+        Reader failing = new Reader() {
+            private boolean read;
+
+            @Override
+            public int read(char[] buffer, int offset, int length) {
+                if (read) throw new IllegalStateException("input gone");
+                read = true;
+                "1 2 +".getChars(0, 5, buffer, offset);
+                return 5;
+            }
+
+            @Override
+            public void close() {}
+        };
+        Optional<Exception> maybeException = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> rpn.pushAll(failing));
+        assertEquals("input gone", maybeException.get().getMessage());
+
+        rpn = Calculator.getInstance(token -> {
+            if (token.equals("boom")) throw new IllegalArgumentException("unparsable");
+            return Number.of(token);
+        }, Stack::newInstance);
+        maybeException = assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> rpn.pushAll(new StringReader("1 2 boom 3")));
+        assertEquals("unparsable", maybeException.get().getMessage());
+        assertEquals(Arrays.asList("1", "2"), toStrings(rpn.evaluate()));
+    }
+
+    @Test
+    public void testCanReleaseInputOnEarlyStop() throws IOException {
+        PipedWriter writer = new PipedWriter();
+        PipedReader reader = new PipedReader(writer);
+        writer.write("1 x ");
+        writer.flush();
+        // the input stays open, tokenizing waits on it after the error
+        Optional<Exception> maybeException = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> rpn.pushAll(reader));
+        assertEquals(Failure.Code.UnknownToken, ((Failure) maybeException.get()).getCode());
+        assertThrows(IOException.class, () -> assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            while (true) {
+                writer.write(' ');
+                writer.flush();
+                Thread.sleep(10);
+            }
+        }));
+    }
+
+    @Test
+    public void testCanRenderStack() throws IOException {
+        rpn.push("1", "2", "sqrt", "-3.5", "0", "/", "-0.000000000001", "0.1", "3", "/");
+        String expected = String.join(" ", toStrings(rpn.evaluate()));
+        assertEquals("1 1.4142135623 Division by zero -0 0.0333333333", expected);
+
+        StringBuilder builder = new StringBuilder();
+        rpn.render(builder);
+        assertEquals(expected, builder.toString());
+
+        CharBuffer chars = CharBuffer.allocate(64);
+        rpn.render(chars);
+        chars.flip();
+        assertEquals(expected, chars.toString());
+
+        ByteBuffer bytes = ByteBuffer.allocate(64);
+        rpn.render(bytes);
+        bytes.flip();
+        assertEquals(expected, StandardCharsets.UTF_8.decode(bytes).toString());
+
+        assertThrows(BufferOverflowException.class, () -> rpn.render(ByteBuffer.allocate(8)));
+    }
+
+    @Test
+    public void testCanReduceStack() {
+        assertEvaluation(Arrays.asList("10"), "1", "2", "3", "4", "sum");
+        assertEvaluation(Arrays.asList("1", "2", "3", "4"), "undo");
+        assertEvaluation(Arrays.asList("24"), "prod");
+        assertEvaluation(Arrays.asList("24", "5", "14"), "5", "6", "8", "2", "sumn");
+        assertEvaluation(Arrays.asList("24", "5", "6", "8", "2"), "undo");
+        assertEvaluation(Arrays.asList("24", "5", "14", "3"), "sumn", "3");
+    }
+
+    @Test
+    public void testCanRejectReductionParameters() {
+        Optional<Exception> maybeException = rpn.push("sum");
+        assertEquals("Operator 'sum' (position 1), insufficient parameter", maybeException.get().getMessage());
+        maybeException = rpn.push("1", "2", "+", "3", "sumn");
+        assertEquals("Operator 'sumn' (position 5), insufficient parameter", maybeException.get().getMessage());
+        assertEquals(Arrays.asList("3", "3"), toStrings(rpn.evaluate()));
+        maybeException = rpn.push("1.5", "sumn");
+        assertEquals(Failure.Code.InvalidParameter, ((Failure) maybeException.get()).getCode());
+        assertEquals("Operator 'sumn' (position 6), invalid parameter", maybeException.get().getMessage());
+        assertEquals(Arrays.asList("3", "3", "1.5"), toStrings(rpn.evaluate()));
+        // checked at full precision, not as displayed
+        maybeException = rpn.push("clear", "1", "2", "3", "2.00000000001", "sumn");
+        assertEquals(Failure.Code.InvalidParameter, ((Failure) maybeException.get()).getCode());
+        // only a literal count, nothing is evaluated at push time
+        maybeException = rpn.push("undo", "1", "1", "+", "sumn");
+        assertEquals(Failure.Code.InvalidParameter, ((Failure) maybeException.get()).getCode());
+        assertEquals(Arrays.asList("1", "2", "3", "2"), toStrings(rpn.evaluate()));
+        assertEvaluation(Arrays.asList("1", "5"), "clear", "1", "2", "3", "2.000", "sumn");
+    }
+
+    @Test
+    public void testCanReduceLargeStackInParallel() {
+        Calculator<Number> chain = Calculator.getInstance(Number::of, Stack::newInstance);
+        for (int i = 0; i < 1500; i++) {
+            String operand = i % 7 == 0 ? "-" + i + ".25" : Integer.toString(i);
+            rpn.push(operand);
+            chain.push(operand);
+            if (i > 0) chain.push("+");
+        }
+        assertFalse(rpn.push("sum").isPresent());
+        assertEquals(toStrings(chain.evaluate()), toStrings(rpn.evaluate()));
+
+        assertFalse(rpn.push("undo", "0", "/", "sum").isPresent());
+        assertEquals(Arrays.asList("Division by zero"), toStrings(rpn.evaluate()));
+
+        // deeper than a chain of binary nodes could be evaluated
+        rpn.push("clear");
+        for (int i = 0; i < 100000; i++)
+            rpn.push("1");
+        assertEvaluation(Arrays.asList("100000"), "sum");
+    }
+
+    @Test
+    public void testCanBudgetReduction() {
+        assertFalse(rpn.push("1", "2", "3", "4", "sum").isPresent());
+        assertEquals(Failure.BUDGET_EXCEEDED, rpn.evaluate(Budget.of(1, TimeUnit.MINUTES, 2)).get(0).getLeft());
+        assertEquals("10", rpn.evaluate(Budget.of(1, TimeUnit.MINUTES, 3)).get(0).get().toString());
+    }
+
+    @Test
+    public void testCanAccountRetainedBytes() {
+        assertEquals(0, rpn.retainedBytes());
+        rpn.push("1", "2");
+        long literals = rpn.retainedBytes();
+        assertTrue(literals > 0);
+        rpn.push("+");
+        assertTrue(rpn.retainedBytes() > literals);
+        long operator = rpn.retainedBytes();
+        // result slots count as filled from the start
+        rpn.evaluate();
+        assertEquals(operator, rpn.retainedBytes());
+        rpn.push("clear");
+        assertEquals(0, rpn.retainedBytes());
+    }
+
+    @Test
+    public void testCanRejectPushOverQuota() {
+        Quota quota = Quota.of(2000, Long.MAX_VALUE, Quota.Policy.Reject);
+        rpn = limited(quota);
+        Optional<Exception> maybeException = Optional.empty();
+        int pushed = 0;
+        while (!maybeException.isPresent())
+            maybeException = rpn.push(Integer.toString(++pushed));
+        assertEquals(Failure.Code.MemoryLimitExceeded, ((Failure) maybeException.get()).getCode());
+        assertEquals("Element '" + pushed + "' (position " + pushed + "), memory limit exceeded",
+                maybeException.get().getMessage());
+        assertEquals(pushed - 1, rpn.evaluate().size());
+        assertTrue(rpn.retainedBytes() <= 2000);
+        assertEquals(rpn.retainedBytes(), quota.getUsed());
+        assertEquals(1, quota.getRefused());
+
+        // operators still work the stack down, making room for numbers
+        assertFalse(rpn.push("+", "+").isPresent());
+        assertTrue(rpn.push("1").isPresent());
+        assertFalse(rpn.push("clear", "1").isPresent());
+    }
+
+    @Test
+    public void testCanCompactToFitQuota() {
+        Quota quota = Quota.of(3000, Long.MAX_VALUE, Quota.Policy.Compact);
+        rpn = limited(quota);
+        assertFalse(rpn.push("1", "2", "+", "3", "*", "1", "0", "/", "4").isPresent());
+        long before = rpn.retainedBytes();
+        assertFalse(rpn.push("5").isPresent());
+        assertTrue(rpn.retainedBytes() < before);
+        assertEquals(1, quota.getCompactions());
+        assertEquals(Arrays.asList("9", "Division by zero", "4", "5"), toStrings(rpn.evaluate()));
+        // the failed entry kept its operands, the compacted one is a literal now
+        assertEquals(Arrays.asList("9", "1", "0"), toStrings(evaluateAfter("undo", "undo", "undo")));
+        assertEquals(Arrays.asList(), toStrings(evaluateAfter("undo", "undo", "undo")));
+    }
+
+    @Test
+    public void testCanBoundCompactionWork() {
+        rpn.push("1");
+        for (int i = 0; i < 1500; i++)
+            rpn.push("1", "+");
+        Quota quota = Quota.of(rpn.retainedBytes() + 100, Long.MAX_VALUE, Quota.Policy.Compact);
+        Calculator<Number> chain = limited(quota);
+        chain.push("1");
+        for (int i = 0; i < 1500; i++)
+            chain.push("1", "+");
+        // a push computes a bounded part of the chain, the next ones resume it
+        int pushes = 1;
+        while (chain.push("5").isPresent())
+            pushes++;
+        assertTrue(pushes > 1);
+        assertEquals(1, quota.getCompactions());
+        assertEquals(pushes - 1, quota.getRefused());
+        assertEquals(Arrays.asList("1501", "5"), toStrings(chain.evaluate()));
+    }
+
+    @Test
+    public void testCanShareGlobalQuota() {
+        Quota quota = Quota.of(Long.MAX_VALUE, 3000, Quota.Policy.Reject);
+        Calculator<Number> first = limited(quota);
+        Calculator<Number> second = limited(quota);
+        while (!first.push("1").isPresent());
+        assertTrue(second.push("1").isPresent());
+        assertEquals(2, quota.getSessions());
+        assertEquals(first.retainedBytes(), quota.getUsed());
+        first.push("clear");
+        assertFalse(second.push("1").isPresent());
+        assertEquals(second.retainedBytes(), quota.getUsed());
+    }
+
+    private static Calculator<Number> limited(Quota quota) {
+        return Calculator.getInstance(Number::of, CommandFactory.<Number>heap(), Stack::newInstance,
+                CacheStrategy.<Number>get(), quota);
+    }
+
+    private List<Either<Exception, Number>> evaluateAfter(String ... input) {
+        assertFalse(rpn.push(input).isPresent());
+        return rpn.evaluate();
+    }
+
+    private static List<String> toStrings(List<Either<Exception, Number>> results) {
+        return results.stream().map(r -> r.isLeft() ? r.getLeft().getMessage() : r.get().toString())
+                .collect(Collectors.toList());
+    }
+
+    private RecordingSubscriber subscriber(List<String> events, long initialRequest, boolean wantsResults) {
+        RecordingSubscriber subscriber = new RecordingSubscriber(events, initialRequest, wantsResults);
+        rpn.subscribe(subscriber);
+        return subscriber;
+    }
+
+    private static class RecordingSubscriber implements Publisher.Subscriber<Number> {
+        private final List<String> events;
+        private final long initialRequest;
+        private final boolean wantsResults;
+        Publisher.Subscription subscription;
+
+        RecordingSubscriber(List<String> events, long initialRequest, boolean wantsResults) {
+            this.events = events;
+            this.initialRequest = initialRequest;
+            this.wantsResults = wantsResults;
+        }
+
+        @Override
+        public void onSubscribe(Publisher.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(initialRequest);
+        }
+
+        @Override
+        public void onEvent(Publisher.Event<Number> event) {
+            switch (event.getType()) {
+                case Popped:
+                    events.add("Popped " + event.getPosition() + "/" + event.getCount());
+                    break;
+                case Result:
+                    events.add("Result " + event.getPosition() + " " + event.getResult().get().get());
+                    break;
+                default:
+                    events.add(event.getType() + " " + event.getPosition());
+            }
+        }
+
+        @Override
+        public boolean wantsResults() {
+            return wantsResults;
+        }
+    }
+
     private void assertEvaluation(List<String> expected, String ... input) {
         Optional<Exception> maybeException = rpn.push(input);
         assertFalse(maybeException.isPresent());
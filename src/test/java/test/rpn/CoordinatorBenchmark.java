@@ -0,0 +1,62 @@
+package test.rpn;
+
+import io.vavr.control.Either;
+import org.openjdk.jmh.annotations.*;
+import rpn.*;
+import rpn.Number;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/*
+ * Throughput of a Coordinator against sequential evaluation in one JVM,
+ * over a stack of independent entries of 50 sqrt and add nodes each.
+ *
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main CoordinatorBenchmark"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CoordinatorBenchmark {
+    @Param({"2", "4"})
+    int workers;
+
+    private final CommandFactory<Number> factory = CommandFactory.heap();
+    private List<Command<Number>> entries;
+    private Coordinator<Number> coordinator;
+
+    @Setup
+    public void setup() throws IOException {
+        entries = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Command<Number> entry = factory.literal(Number.of(Integer.toString(i)).get());
+            for (int j = 0; j < 25; j++)
+                entry = factory.unary(Opcode.Sqrt,
+                        factory.binary(Opcode.Add, entry, factory.literal(Number.of(i + "." + j).get())));
+            entries.add(entry);
+        }
+        coordinator = Coordinator.forNumber(workers);
+    }
+
+    @TearDown
+    public void tearDown() {
+        coordinator.close();
+    }
+
+    @Benchmark
+    public List<Either<Exception, Number>> singleJvm() {
+        return entries.stream().map(Command::apply).collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public List<Either<Exception, Number>> coordinated() {
+        return coordinator.evaluate(entries);
+    }
+}
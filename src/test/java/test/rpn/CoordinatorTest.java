@@ -0,0 +1,99 @@
+package test.rpn;
+
+import io.vavr.control.Either;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import rpn.*;
+import rpn.Number;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CoordinatorTest {
+    private final CommandFactory<Number> factory = CommandFactory.heap();
+    private final CommandCodec<Number> codec = CommandCodec.forNumber();
+
+    @Test
+    public void testCanRoundTripResults() throws IOException {
+        List<Either<Exception, Number>> results = Arrays.asList(
+                Either.right(Number.of("1.25").get()),
+                Either.left(Failure.DIVISION_BY_ZERO),
+                Either.left(new ArithmeticException("Overflow")));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Either<Exception, Number> r : results)
+            codec.encodeResult(r, out);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals("1.25", codec.decodeResult(in).get().toString());
+        assertSame(Failure.DIVISION_BY_ZERO, codec.decodeResult(in).getLeft());
+        Exception other = codec.decodeResult(in).getLeft();
+        assertTrue(other instanceof ExecutionException);
+        assertEquals("Overflow", other.getMessage());
+    }
+
+    @Test
+    public void testCanEvaluateAcrossWorkers() throws IOException {
+        Calculator<Number> rpn = Calculator.getInstance(Number::of, Stack::newInstance);
+        List<String> tokens = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            tokens.addAll(Arrays.asList(Integer.toString(i), "2", "+", "sqrt", Integer.toString(i % 7), "/"));
+        assertFalse(rpn.push(tokens.toArray(new String[0])).isPresent());
+
+        List<Command<Number>> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            entries.add(factory.binary(Opcode.Divide,
+                    factory.unary(Opcode.Sqrt, factory.binary(Opcode.Add, literal(Integer.toString(i)), literal("2"))),
+                    literal(Integer.toString(i % 7))));
+        try (Coordinator<Number> coordinator = Coordinator.forNumber(2)) {
+            assertEquals(2, coordinator.liveWorkers());
+            assertEquals(toStrings(rpn.evaluate()), toStrings(coordinator.evaluate(entries)));
+        }
+    }
+
+    @Test
+    public void testSplitsLargeEntries() throws IOException {
+        Command<Number> tree = literal("1");
+        for (int i = 0; i < 200; i++)
+            tree = factory.binary(i % 2 == 0 ? Opcode.Add : Opcode.Multiply, tree, literal("1.5"));
+        Command<Number> large = factory.binary(Opcode.Subtract, tree, factory.unary(Opcode.Sqrt, tree));
+        try (Coordinator<Number> coordinator = Coordinator.forNumber(2)) {
+            assertEquals(toStrings(Arrays.asList(large.apply(), Either.right(Number.of("3").get()))),
+                    toStrings(coordinator.evaluate(Arrays.asList(large, literal("3")))));
+        }
+    }
+
+    @Test
+    public void testReassignsWorkOfDeadWorker(@TempDir Path directory) throws IOException {
+        Path marker = directory.resolve("died");
+        List<Command<Number>> entries = new ArrayList<>();
+        for (int i = 0; i < 40; i++)
+            entries.add(factory.binary(Opcode.Add, literal(Integer.toString(i)), literal("1")));
+        try (Coordinator<Number> coordinator = Coordinator.newInstance(2, codec, FlakyWorker.class, marker.toString())) {
+            List<String> expected = entries.stream().map(c -> c.apply().get().toString()).collect(Collectors.toList());
+            assertEquals(expected, toStrings(coordinator.evaluate(entries)));
+            assertTrue(Files.exists(marker));
+            assertEquals(1, coordinator.liveWorkers());
+        }
+    }
+
+    private Command<Number> literal(String value) {
+        return factory.literal(Number.of(value).get());
+    }
+
+    private static List<String> toStrings(List<Either<Exception, Number>> results) {
+        return results.stream().map(r -> r.isLeft() ? r.getLeft().getMessage() : r.get().toString())
+                .collect(Collectors.toList());
+    }
+}
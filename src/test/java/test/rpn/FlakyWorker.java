@@ -0,0 +1,35 @@
+package test.rpn;
+
+import rpn.*;
+import rpn.Number;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+/*
+ * Worker for CoordinatorTest: the first worker to read the literal 13
+ * claims the marker file (args[1]) and dies, the others serve normally.
+ */
+public class FlakyWorker {
+    public static void main(String[] args) throws IOException {
+        CommandCodec<Number> codec = CommandCodec.<Number>of(n -> n.getValue().toPlainString(), s -> {
+            Optional<Number> n = Number.of(s);
+            if (n.isPresent() && n.get().getValue().compareTo(BigDecimal.valueOf(13)) == 0) {
+                try {
+                    Files.createFile(Paths.get(args[1]));
+                    Runtime.getRuntime().halt(1);
+                } catch (FileAlreadyExistsException e) {
+                    // another worker died already
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return n;
+        }, CommandFactory.heap());
+        Worker.serve(Integer.parseInt(args[0]), codec);
+    }
+}
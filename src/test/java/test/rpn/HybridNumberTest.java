@@ -0,0 +1,138 @@
+package test.rpn;
+
+import io.vavr.control.Either;
+import org.junit.jupiter.api.Test;
+import rpn.HybridNumber;
+import rpn.Number;
+import rpn.Opcode;
+import rpn.ResultCache;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HybridNumberTest {
+    private static final List<String> LITERALS = Arrays.asList(
+            "0", "1", "-1", "4", "4.0", "4.5", "-4.545", "5.43", "0.0000", ".5", "5.", "-0.00000000001",
+            "500000.1234567899355", "-500000.12345678993", "12345678901234567", "-98765432109876543210",
+            "3037000499.97605", "9223372036854775807", "0.000000000000000123", "1e5");
+
+    @Test
+    public void testCanCreateHybridNumber() {
+        assertFalse(HybridNumber.of("fail").isPresent());
+        assertFalse(HybridNumber.of("").isPresent());
+        assertFalse(HybridNumber.of("-").isPresent());
+        assertFalse(HybridNumber.of(".").isPresent());
+        assertFalse(HybridNumber.of("1.2.3").isPresent());
+        assertFalse(HybridNumber.of(null).isPresent());
+        assertTrue(HybridNumber.of("4.5").get().isCompact());
+        assertFalse(HybridNumber.of("-98765432109876543210").get().isCompact());
+        for (String literal : LITERALS) {
+            assertEquals(Number.of(literal).get().toString(), HybridNumber.of(literal).get().toString(), literal);
+            assertEquals(Number.of(literal).get().getValue(), HybridNumber.of(literal).get().getValue(), literal);
+        }
+    }
+
+    @Test
+    public void testCanRenderLikeNumber() throws IOException {
+        for (String literal : LITERALS) {
+            StringBuilder number = new StringBuilder(), hybrid = new StringBuilder();
+            Number.of(literal).get().render(number);
+            HybridNumber.of(literal).get().render(hybrid);
+            assertEquals(number.toString(), hybrid.toString(), literal);
+            assertEquals(Number.of(literal).get().toString(), hybrid.toString(), literal);
+        }
+    }
+
+    @Test
+    public void testCanOperateLikeNumber() {
+        for (String left : LITERALS) {
+            for (String right : LITERALS) {
+                assertSameResult(left, right, "+", Number::add, HybridNumber::add);
+                assertSameResult(left, right, "-", Number::substract, HybridNumber::substract);
+                assertSameResult(left, right, "*", Number::multiply, HybridNumber::multiply);
+                assertSameResult(left, right, "/", Number::divide, HybridNumber::divide);
+            }
+            assertSameResult(left, "0", "sqrt", (n, ignored) -> n.sqrt(), (n, ignored) -> n.sqrt());
+        }
+    }
+
+    @Test
+    public void testCanPromoteAndDemote() {
+        HybridNumber max = HybridNumber.of("9223372036854775807").get();
+        HybridNumber promoted = max.add(HybridNumber.of("1").get());
+        assertFalse(promoted.isCompact());
+        assertEquals("9223372036854775808", promoted.toString());
+        assertTrue(promoted.substract(HybridNumber.of("1").get()).substract(max).isCompact());
+        // the quotient of the smallest unscaled value by -1 doesn't fit a long
+        HybridNumber min = HybridNumber.of("-9223.372036854775808").get();
+        assertTrue(min.isCompact());
+        assertSameResult("-9223.372036854775808", "-1", "/", Number::divide, HybridNumber::divide);
+    }
+
+    @Test
+    public void testCanCompareAsCacheKey() {
+        HybridNumber compact = HybridNumber.of("922337203685477").get();
+        HybridNumber big = HybridNumber.of(new BigDecimal("922337203685477"), 15, 10);
+        assertTrue(compact.isCompact());
+        assertFalse(big.isCompact());
+        assertEquals(compact, big);
+        assertEquals(compact.hashCode(), big.hashCode());
+        assertEquals(HybridNumber.of("4.50").get(), HybridNumber.of("4.5").get());
+        assertEquals(HybridNumber.of("4.50").get().hashCode(), HybridNumber.of("4.5").get().hashCode());
+        assertNotEquals(HybridNumber.of("4.5").get(), HybridNumber.of("4.5", 15, 2).get());
+        assertNotEquals(HybridNumber.of("4.5").get(), HybridNumber.of("4.51").get());
+
+        ResultCache<HybridNumber> results = ResultCache.newInstance(16, 1);
+        results.put(Opcode.Add, HybridNumber.of("1").get(), HybridNumber.of("2").get(),
+                Either.right(HybridNumber.of("3").get()));
+        assertEquals("3", results.get(Opcode.Add, HybridNumber.of("1").get(), HybridNumber.of("2.0").get())
+                .get().get().toString());
+    }
+
+    @Test
+    public void testCanChainRandomOperations() {
+        Random random = new Random(42);
+        for (int run = 0; run < 200; run++) {
+            String seed = Long.toString(random.nextInt(2000000) - 1000000) + "." + random.nextInt(1000);
+            Number n = Number.of(seed).get();
+            HybridNumber h = HybridNumber.of(seed).get();
+            for (int step = 0; step < 20; step++) {
+                String operand = Integer.toString(random.nextInt(20000) - 10000) + "." + random.nextInt(100);
+                switch (random.nextInt(4)) {
+                    case 0: n = n.add(Number.of(operand).get()); h = h.add(HybridNumber.of(operand).get()); break;
+                    case 1: n = n.substract(Number.of(operand).get()); h = h.substract(HybridNumber.of(operand).get()); break;
+                    case 2: n = n.multiply(Number.of(operand).get()); h = h.multiply(HybridNumber.of(operand).get()); break;
+                    default:
+                        if (Number.of(operand).get().getValue().signum() == 0) continue;
+                        n = n.divide(Number.of(operand).get()); h = h.divide(HybridNumber.of(operand).get());
+                }
+                assertEquals(n.getValue(), h.getValue());
+                assertEquals(n.toString(), h.toString());
+            }
+        }
+    }
+
+    private void assertSameResult(String left, String right, String operator,
+                                  BiFunction<Number, Number, Number> numberOperator,
+                                  BiFunction<HybridNumber, HybridNumber, HybridNumber> hybridOperator) {
+        String description = left + " " + right + " " + operator;
+        Number expected;
+        try {
+            expected = numberOperator.apply(Number.of(left).get(), Number.of(right).get());
+        } catch (RuntimeException e) {
+            Exception actual = assertThrows(RuntimeException.class,
+                    () -> hybridOperator.apply(HybridNumber.of(left).get(), HybridNumber.of(right).get()), description);
+            assertEquals(e.getClass(), actual.getClass(), description);
+            return;
+        }
+        HybridNumber actual = hybridOperator.apply(HybridNumber.of(left).get(), HybridNumber.of(right).get());
+        assertEquals(expected.getValue(), actual.getValue(), description);
+        assertEquals(expected.toString(), actual.toString(), description);
+    }
+}
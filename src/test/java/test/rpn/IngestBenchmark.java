@@ -0,0 +1,51 @@
+package test.rpn;
+
+import org.openjdk.jmh.annotations.*;
+import rpn.*;
+import rpn.Number;
+
+import java.io.StringReader;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Ingestion of 100K tokens into one session: sequential push of
+ * pre-split tokens against pipelined pushAll() of the same text.
+ *
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main IngestBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IngestBenchmark {
+    private String[] tokens;
+    private String text;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        tokens = new String[100_000];
+        for (int i = 0; i < tokens.length; i += 4) {
+            tokens[i] = random.nextInt(1000) + "." + random.nextInt(1000);
+            tokens[i + 1] = Integer.toString(random.nextInt(1000) + 1);
+            tokens[i + 2] = random.nextBoolean() ? "+" : "*";
+            tokens[i + 3] = i % 8 == 0 ? "sqrt" : "undo";
+        }
+        text = String.join(" ", tokens);
+    }
+
+    @Benchmark
+    public Optional<Exception> sequential() {
+        return Calculator.getMemoizedInstance(Number::of, Stack::newInstance).push(tokens);
+    }
+
+    @Benchmark
+    public Optional<Exception> pipelined() {
+        return Calculator.getMemoizedInstance(Number::of, Stack::newInstance).pushAll(new StringReader(text));
+    }
+}
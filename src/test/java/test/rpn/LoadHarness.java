@@ -0,0 +1,390 @@
+package test.rpn;
+
+import io.vavr.control.Either;
+import org.HdrHistogram.Histogram;
+import rpn.*;
+import rpn.Number;
+import rpn.Stack;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Load generator driving Calculator sessions, or bare Stacks, from a
+ * workload profile: a weighted mix of pushes of valid and malformed
+ * tokens, evaluations, undos and clears spread over many sessions.
+ *
+ * With a rate, operations are issued on a fixed schedule (open loop) and
+ * latency is measured from the time an operation was due, not from when it
+ * actually started, so stalls are charged to every operation queued behind
+ * them (no coordinated omission). Service time, from the actual start, is
+ * reported alongside. Without a rate, each thread issues back to back.
+ *
+ * Options (--name=value):
+ *   profile    interactive | batch | hostile              (interactive)
+ *   target     calculator | stack                         (calculator)
+ *   strategy   get | none | shared | speculative | memoized | offheap   (get)
+ *   stack      preliminary | mapped                       (preliminary)
+ *   number     number | hybrid                            (number)
+ *   threads, sessions, rate (operations per second, 0 for closed loop),
+ *   warmup and duration (seconds), seed
+ *
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath test.rpn.LoadHarness --profile=hostile --rate=20000"
+ **/
+public final class LoadHarness {
+    private static final String[] OPERATORS = {"+", "-", "*", "/", "sqrt"};
+    private static final String[] MALFORMED = {"abc", "1.2.3", "--", "+1e", "sqrt2", "0x1F", "NaN"};
+    private static final Opcode[] BINARY = {Opcode.Add, Opcode.Subtract, Opcode.Multiply, Opcode.Divide};
+    private static final int VALUES = 128;
+    private static final long PARK_THRESHOLD_NANOS = 100_000;
+
+    enum Operation { PUSH, OPERATOR, EVALUATE, UNDO, CLEAR, MALFORMED }
+
+    /*
+     * Weights of each operation, in Operation order, and the
+     * number of values in one push.
+     */
+    enum Profile {
+        interactive(2, 40, 25, 20, 8, 5, 2),
+        batch(32, 60, 25, 5, 0, 10, 0),
+        hostile(2, 30, 20, 15, 10, 5, 20);
+
+        private final int values;
+        private final int[] weights;
+        private final int total;
+
+        Profile(int values, int... weights) {
+            this.values = values;
+            this.weights = weights;
+            this.total = Arrays.stream(weights).sum();
+        }
+
+        Operation next(Random random) {
+            int pick = random.nextInt(total);
+            for (int i = 0; i < weights.length; i++) {
+                pick -= weights[i];
+                if (pick < 0) return Operation.values()[i];
+            }
+            throw new IllegalStateException();
+        }
+    }
+
+    /*
+     * One calculator or stack, only ever used by one thread.
+     * Returns false if the operation was rejected.
+     */
+    interface Session {
+        boolean execute(Operation operation, Random random);
+    }
+
+    private final Map<String, String> options;
+    private final Profile profile;
+    private final int threads;
+    private final int sessions;
+    private final long rate;
+    private final long seed;
+    private final List<Path> directories = new ArrayList<>();
+
+    private LoadHarness(Map<String, String> options) {
+        this.options = options;
+        this.profile = Profile.valueOf(option("profile", "interactive"));
+        this.threads = Integer.parseInt(option("threads", "1"));
+        this.sessions = Integer.parseInt(option("sessions", "64"));
+        this.rate = Long.parseLong(option("rate", "0"));
+        this.seed = Long.parseLong(option("seed", "42"));
+        if (threads < 1 || sessions < threads) throw new IllegalArgumentException("Need at least one session per thread");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        LoadHarness harness = new LoadHarness(options);
+        try {
+            if (harness.option("number", "number").equals("hybrid"))
+                harness.run(HybridNumber::of, n -> n.getValue().toPlainString());
+            else
+                harness.run(Number::of, n -> n.getValue().toPlainString());
+        } finally {
+            harness.deleteDirectories();
+        }
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private<E extends Operatable<E>> void run(Function<String, Optional<E>> parser, Function<E, String> writer)
+            throws Exception {
+        Random random = new Random(seed);
+        String[] values = new String[VALUES];
+        for (int i = 0; i < VALUES; i++)
+            values[i] = i % 16 == 0 ? "0" : random.nextInt(1000) + (i % 3 == 0 ? "." + random.nextInt(100) : "");
+
+        Supplier<Session> sessionFactory = sessionFactory(parser, writer, values);
+        List<List<Session>> owned = new ArrayList<>();
+        for (int t = 0; t < threads; t++)
+            owned.add(new ArrayList<>());
+        for (int s = 0; s < sessions; s++)
+            owned.get(s % threads).add(sessionFactory.get());
+
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmup", "5")));
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "30")));
+        phase(owned, warmup);
+        Map<String, long[]> gcBefore = gcCounters();
+        Result result = phase(owned, duration);
+        Map<String, long[]> gcAfter = gcCounters();
+        report(result, gcBefore, gcAfter);
+        if (option("strategy", "get").equals("shared"))
+            System.out.println("shared cache: " + ResultCache.shared().stats());
+    }
+
+    private<E extends Operatable<E>> Supplier<Session> sessionFactory(
+            Function<String, Optional<E>> parser, Function<E, String> writer, String[] values) {
+        CommandCodec<E> codec = CommandCodec.of(writer, parser, CommandFactory.heap());
+        Supplier<Stack<Command<E>>> stacks = option("stack", "preliminary").equals("mapped")
+                ? () -> MappedStack.newInstance(newDirectory(), codec)
+                : Stack::newInstance;
+        if (option("target", "calculator").equals("stack")) {
+            CommandFactory<E> factory = CommandFactory.heap();
+            List<Command<E>> literals = Arrays.stream(values)
+                    .map(v -> factory.literal(parser.apply(v).get()))
+                    .collect(Collectors.toList());
+            return () -> stackSession(stacks.get(), factory, literals);
+        }
+        String strategy = option("strategy", "get");
+        // one speculative pool for all sessions, as a server would have
+        CacheStrategy<E> speculative = strategy.equals("speculative") ? CacheStrategy.speculative(2, 1024) : null;
+        return () -> {
+            Calculator<E> calculator;
+            switch (strategy) {
+                case "get": calculator = Calculator.getInstance(parser, stacks); break;
+                case "none": calculator = Calculator.getInstance(parser, stacks, CacheStrategy.none()); break;
+                case "shared": calculator = Calculator.getInstance(parser, stacks, CacheStrategy.shared()); break;
+                case "speculative": calculator = Calculator.getInstance(parser, stacks, speculative); break;
+                case "memoized": calculator = Calculator.getMemoizedInstance(parser, stacks); break;
+                case "offheap": calculator = Calculator.getOffHeapInstance(parser); break;
+                default: throw new IllegalArgumentException("Unknown strategy " + strategy);
+            }
+            return calculatorSession(calculator, values);
+        };
+    }
+
+    private Session calculatorSession(Calculator<?> calculator, String[] values) {
+        String[] push = new String[profile.values];
+        return (operation, random) -> {
+            switch (operation) {
+                case PUSH:
+                    for (int i = 0; i < push.length; i++)
+                        push[i] = values[random.nextInt(values.length)];
+                    return !calculator.push(push).isPresent();
+                case OPERATOR: return !calculator.push(OPERATORS[random.nextInt(OPERATORS.length)]).isPresent();
+                case EVALUATE: return calculator.evaluate().stream().allMatch(Either::isRight);
+                case UNDO: return !calculator.push("undo").isPresent();
+                case CLEAR: return !calculator.push("clear").isPresent();
+                default: return !calculator.push(MALFORMED[random.nextInt(MALFORMED.length)]).isPresent();
+            }
+        };
+    }
+
+    /*
+     * The stack operations a calculator would issue, without the registry
+     * or caching strategy. A malformed operation pops past the bottom.
+     */
+    private<E extends Operatable<E>> Session stackSession(
+            Stack<Command<E>> stack, CommandFactory<E> factory, List<Command<E>> literals) {
+        return (operation, random) -> {
+            switch (operation) {
+                case PUSH:
+                    List<Command<E>> push = new ArrayList<>(profile.values);
+                    for (int i = 0; i < profile.values; i++)
+                        push.add(literals.get(random.nextInt(literals.size())));
+                    stack.push(push);
+                    return true;
+                case OPERATOR:
+                    List<Command<E>> args = stack.pop(2);
+                    if (args.size() < 2) return false;
+                    stack.push(Collections.singletonList(
+                            factory.binary(BINARY[random.nextInt(BINARY.length)], args.get(0), args.get(1))));
+                    return true;
+                case EVALUATE: return stack.stream().map(Command::apply).allMatch(Either::isRight);
+                case UNDO: return stack.pop(1).size() == 1;
+                case CLEAR:
+                    stack.pop(stack.size());
+                    return true;
+                default:
+                    stack.pop(stack.size() + 1);
+                    return false;
+            }
+        };
+    }
+
+    /*
+     * Runs every thread over its sessions for the given time.
+     */
+    private Result phase(List<List<Session>> owned, long duration) throws InterruptedException {
+        List<Result> results = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Result result = new Result();
+            results.add(result);
+            List<Session> mine = owned.get(t);
+            Random random = new Random(seed + t);
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                drive(mine, random, duration, result);
+            }, "rpn-load-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+        Result total = new Result();
+        for (Result result : results)
+            total.add(result);
+        return total;
+    }
+
+    private void drive(List<Session> mine, Random random, long duration, Result result) {
+        // per thread share of the rate, 0 when closed loop
+        long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(threads) / rate : 0;
+        long begin = System.nanoTime(), end = begin + duration;
+        long due = begin;
+        while (true) {
+            long now = System.nanoTime();
+            if (interval > 0) {
+                // parking overshoots by tens of microseconds, yield through the last stretch
+                while (now < due) {
+                    if (due - now > PARK_THRESHOLD_NANOS) LockSupport.parkNanos(due - now - PARK_THRESHOLD_NANOS);
+                    else Thread.yield();
+                    now = System.nanoTime();
+                }
+            } else {
+                due = now;
+            }
+            if (due >= end) break;
+            Operation operation = profile.next(random);
+            boolean ok = mine.get(random.nextInt(mine.size())).execute(operation, random);
+            long done = System.nanoTime();
+            result.record(operation, due, now, done, ok);
+            due += interval;
+        }
+        result.elapsed = Math.max(result.elapsed, System.nanoTime() - begin);
+    }
+
+    /*
+     * Histograms in nanoseconds; response is measured from the
+     * scheduled time, service from the actual start.
+     */
+    private static final class Result {
+        private final Histogram response = new Histogram(3);
+        private final Histogram service = new Histogram(3);
+        private final Map<Operation, Histogram> perOperation = new EnumMap<>(Operation.class);
+        private final long[] rejected = new long[Operation.values().length];
+        private long elapsed;
+
+        private Result() {
+            for (Operation operation : Operation.values())
+                perOperation.put(operation, new Histogram(3));
+        }
+
+        private void record(Operation operation, long due, long started, long done, boolean ok) {
+            response.recordValue(done - due);
+            service.recordValue(done - started);
+            perOperation.get(operation).recordValue(done - due);
+            if (!ok) rejected[operation.ordinal()]++;
+        }
+
+        private void add(Result that) {
+            response.add(that.response);
+            service.add(that.service);
+            for (Operation operation : Operation.values()) {
+                perOperation.get(operation).add(that.perOperation.get(operation));
+                rejected[operation.ordinal()] += that.rejected[operation.ordinal()];
+            }
+            elapsed = Math.max(elapsed, that.elapsed);
+        }
+    }
+
+    private static Map<String, long[]> gcCounters() {
+        Map<String, long[]> counters = new LinkedHashMap<>();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            counters.put(gc.getName(), new long[] {gc.getCollectionCount(), gc.getCollectionTime()});
+        return counters;
+    }
+
+    private void report(Result result, Map<String, long[]> gcBefore, Map<String, long[]> gcAfter) {
+        long count = result.response.getTotalCount();
+        double seconds = result.elapsed / 1e9;
+        System.out.println(options);
+        System.out.printf("throughput: %.0f ops/s (%d ops in %.1f s%s)%n", count / seconds, count, seconds,
+                rate > 0 ? ", target " + rate + " ops/s" : ", closed loop");
+        System.out.println("latency us  " + (rate > 0 ? "response " : "") + percentiles(result.response));
+        if (rate > 0)
+            System.out.println("            service  " + percentiles(result.service));
+        for (Operation operation : Operation.values()) {
+            Histogram h = result.perOperation.get(operation);
+            if (h.getTotalCount() == 0) continue;
+            System.out.printf("  %-9s %8d ops %7d rejected  %s%n", operation.name().toLowerCase(),
+                    h.getTotalCount(), result.rejected[operation.ordinal()], percentiles(h));
+        }
+        for (Map.Entry<String, long[]> gc : gcAfter.entrySet()) {
+            long[] before = gcBefore.getOrDefault(gc.getKey(), new long[2]);
+            System.out.printf("gc: %s %d collections, %d ms%n", gc.getKey(),
+                    gc.getValue()[0] - before[0], gc.getValue()[1] - before[1]);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("heap: %d MB used of %d MB%n",
+                (runtime.totalMemory() - runtime.freeMemory()) >> 20, runtime.totalMemory() >> 20);
+    }
+
+    private static String percentiles(Histogram h) {
+        return String.format("p50=%.1f p99=%.1f p999=%.1f max=%.1f",
+                h.getValueAtPercentile(50) / 1e3, h.getValueAtPercentile(99) / 1e3,
+                h.getValueAtPercentile(99.9) / 1e3, h.getMaxValue() / 1e3);
+    }
+
+    private Path newDirectory() {
+        try {
+            Path directory = Files.createTempDirectory("rpn-load");
+            synchronized (directories) {
+                directories.add(directory);
+            }
+            return directory;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Mapped stacks dropped by clear are never closed,
+     * their segments go with their directory.
+     */
+    private void deleteDirectories() throws IOException {
+        for (Path directory : directories) {
+            List<Path> paths = Files.walk(directory).sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+            for (Path path : paths)
+                Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package test.rpn;
+
+import org.openjdk.jmh.annotations.*;
+import rpn.*;
+import rpn.Number;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Push then pop depth entries one at a time on a MappedStack, in a
+ * 64MB heap. The deepest runs hold far more entries than an in-heap
+ * stack could, throughput should stay flat as depth grows.
+ *
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main MappedStackBenchmark"
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx64m")
+@State(Scope.Benchmark)
+public class MappedStackBenchmark {
+    @Param({"100000", "1000000", "10000000"})
+    int depth;
+
+    private final CommandFactory<Number> factory = CommandFactory.heap();
+    private Path directory;
+    private Number value;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("mapped-stack");
+        value = Number.of("12345.6789").get();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public int pushThenPop() throws IOException {
+        MappedStack<Number> stack = MappedStack.newInstance(directory, CommandCodec.forNumber());
+        try {
+            for (int i = 0; i < depth; i++)
+                stack.push(Arrays.asList(factory.literal(value)));
+            int popped = 0;
+            while (stack.size() > 0)
+                popped += stack.pop(1).size();
+            return popped;
+        } finally {
+            stack.close();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package test.rpn;
+
+import io.vavr.control.Either;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import rpn.*;
+import rpn.Number;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedStackTest {
+    @TempDir
+    Path directory;
+
+    private final CommandFactory<Number> factory = CommandFactory.heap();
+    private MappedStack<Number> stack;
+
+    @BeforeEach
+    public void init() {
+        stack = MappedStack.newInstance(directory, CommandCodec.forNumber(), 4, 64);
+    }
+
+    @AfterEach
+    public void close() throws IOException {
+        stack.close();
+    }
+
+    @Test
+    public void testCanSpillAndPageIn() {
+        for (int i = 0; i < 100; i++)
+            stack.push(Arrays.asList(literal(Integer.toString(i))));
+        assertEquals(100, stack.size());
+        assertEquals(100, stack.allSize());
+        assertTrue(stack.hotSize() <= 4);
+        assertTrue(stack.segmentCount() > 1);
+        // only the hot region is on the heap
+        long literalBytes = literal("1").retainedBytes();
+        assertEquals(stack.hotSize() * literalBytes, stack.retainedBytes());
+        assertEquals(IntStream.range(0, 100).mapToObj(Integer::toString).collect(Collectors.toList()),
+                toList(stack.allElements()));
+
+        assertEquals(Arrays.asList("90", "91", "92", "93", "94", "95", "96", "97", "98", "99"), toList(stack.pop(10)));
+        assertEquals(Arrays.asList("88", "89"), toList(stack.pop(2)));
+        assertEquals(88, stack.size());
+        assertEquals(88, stack.allSize());
+        assertEquals(stack.hotSize() * literalBytes, stack.retainedBytes());
+        assertEquals(Arrays.asList(), stack.pop(89));
+    }
+
+    @Test
+    public void testCanRoundTripTrees() {
+        Command<Number> tree = factory.binary(Opcode.Multiply,
+                factory.binary(Opcode.Add, literal("1.5"), literal("2")),
+                factory.unary(Opcode.Sqrt, literal("16")));
+        for (int i = 0; i < 10; i++)
+            stack.push(Arrays.asList(tree));
+        assertEquals(60, stack.allSize());
+        Command<Number> paged = stack.pop(10).get(0);
+        assertEquals(Opcode.Multiply, paged.opcode());
+        assertEquals(6, paged.size());
+        assertEquals("14", paged.apply().get().toString());
+        assertEquals(Arrays.asList(Opcode.Add, Opcode.Sqrt),
+                paged.undo().stream().map(Command::opcode).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testDeletesEmptySegments() throws IOException {
+        for (int i = 0; i < 50; i++)
+            stack.push(Arrays.asList(literal(Integer.toString(i))));
+        assertTrue(Files.list(directory).count() > 0);
+        stack.pop(50);
+        assertEquals(0, stack.segmentCount());
+        assertEquals(0, Files.list(directory).count());
+        stack.push(Arrays.asList(literal("1"), literal("2"), literal("3"), literal("4"), literal("5")));
+        stack.close();
+        assertEquals(0, stack.size());
+        assertEquals(0, Files.list(directory).count());
+    }
+
+    @Test
+    public void testCanBackCalculator() {
+        Calculator<Number> mapped = Calculator.getInstance(Number::of,
+                () -> MappedStack.newInstance(directory, CommandCodec.forNumber(), 4, 64));
+        Calculator<Number> heap = Calculator.getInstance(Number::of, Stack::newInstance);
+        for (Calculator<Number> rpn : Arrays.asList(mapped, heap)) {
+            for (int i = 0; i < 20; i++)
+                assertFalse(rpn.push(Integer.toString(i)).isPresent());
+            assertFalse(rpn.push("+", "+", "undo", "sqrt", "*").isPresent());
+        }
+        List<String> result = toStrings(mapped.evaluate());
+        assertEquals(18, result.size());
+        assertEquals(toStrings(heap.evaluate()), result);
+    }
+
+    @Test
+    public void testKeepsUnencodableEntriesHot() {
+        Command<Number> custom = custom(literal("7"));
+        stack.push(Arrays.asList(literal("1"), custom));
+        for (int i = 2; i < 20; i++)
+            stack.push(Arrays.asList(literal(Integer.toString(i))));
+        // nothing above the custom entry can spill
+        assertEquals(1, stack.size() - stack.hotSize());
+        assertEquals(20, stack.size());
+        assertEquals(21, stack.allSize());
+        List<String> expected = IntStream.range(2, 20).mapToObj(Integer::toString).collect(Collectors.toList());
+        expected.addAll(0, Arrays.asList("1", "7"));
+        assertEquals(expected, toList(stack.allElements()));
+
+        assertEquals(18, stack.pop(18).size());
+        assertSame(custom, stack.pop(1).get(0));
+        for (int i = 0; i < 10; i++)
+            stack.push(Arrays.asList(literal(Integer.toString(i))));
+        assertTrue(stack.segmentCount() > 0);
+        assertEquals(11, stack.size());
+    }
+
+    @Test
+    public void testCanReplaceStackInSameDirectory() throws IOException {
+        Calculator<Number> mapped = Calculator.getInstance(Number::of,
+                () -> MappedStack.newInstance(directory, CommandCodec.forNumber(), 4, 64));
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 6; i++)
+                assertFalse(mapped.push(Integer.toString(i)).isPresent());
+            assertEquals(6, mapped.evaluate().size());
+            assertFalse(mapped.push("clear").isPresent());
+            // the replaced stack deleted its segments
+            assertEquals(0, Files.list(directory).count());
+        }
+    }
+
+    @Test
+    public void testCanBackCalculatorWithReductions() {
+        Calculator<Number> mapped = Calculator.getInstance(Number::of,
+                () -> MappedStack.newInstance(directory, CommandCodec.forNumber(), 4, 64));
+        assertFalse(mapped.push("1", "2", "3", "sum").isPresent());
+        for (int i = 4; i < 20; i++)
+            assertFalse(mapped.push(Integer.toString(i)).isPresent());
+        assertFalse(mapped.push("3", "sumn", "*").isPresent());
+        List<String> expected = IntStream.range(4, 16).mapToObj(Integer::toString).collect(Collectors.toList());
+        expected.add(0, "6");
+        expected.add("864");
+        assertEquals(expected, toStrings(mapped.evaluate()));
+
+        assertFalse(mapped.push("undo", "undo").isPresent());
+        expected = IntStream.range(4, 20).mapToObj(Integer::toString).collect(Collectors.toList());
+        expected.add(0, "6");
+        expected.add("3");
+        assertEquals(expected, toStrings(mapped.evaluate()));
+    }
+
+    private Command<Number> custom(Command<Number> operand) {
+        return new Command<Number>() {
+            @Override
+            public Either<Exception, Number> apply() {
+                return operand.apply();
+            }
+
+            @Override
+            public List<Command<Number>> undo() {
+                return Arrays.asList(operand);
+            }
+
+            @Override
+            public int size() {
+                return 1 + operand.size();
+            }
+        };
+    }
+
+    private Command<Number> literal(String value) {
+        return factory.literal(Number.of(value).get());
+    }
+
+    private static List<String> toStrings(List<Either<Exception, Number>> results) {
+        return results.stream().map(r -> r.get().toString()).collect(Collectors.toList());
+    }
+
+    private static List<String> toList(List<Command<Number>> commands) {
+        return commands.stream().map(c -> c.apply().get().toString()).collect(Collectors.toList());
+    }
+}
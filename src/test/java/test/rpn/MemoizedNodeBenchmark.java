@@ -0,0 +1,74 @@
+package test.rpn;
+
+import io.vavr.control.Either;
+import org.openjdk.jmh.annotations.*;
+import rpn.*;
+import rpn.Number;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * CacheStrategy.get() wrappers against CommandFactory.memoized() nodes:
+ * build then evaluate a fresh calculator (run with -prof gc to compare
+ * bytes per op), and evaluate an already evaluated stack from 4 threads.
+ *
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main MemoizedNodeBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MemoizedNodeBenchmark {
+    private String[] tokens;
+    private Calculator<Number> cached;
+    private Calculator<Number> memoized;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        tokens = new String[4000];
+        for (int i = 0; i < tokens.length; i += 4) {
+            tokens[i] = Integer.toString(random.nextInt(1000));
+            tokens[i + 1] = Integer.toString(random.nextInt(1000) + 1);
+            tokens[i + 2] = random.nextBoolean() ? "+" : "/";
+            tokens[i + 3] = "sqrt";
+        }
+        cached = Calculator.getInstance(Number::of, Stack::newInstance);
+        cached.push(tokens);
+        cached.evaluate();
+        memoized = Calculator.getMemoizedInstance(Number::of, Stack::newInstance);
+        memoized.push(tokens);
+        memoized.evaluate();
+    }
+
+    @Benchmark
+    public List<Either<Exception, Number>> buildCached() {
+        Calculator<Number> rpn = Calculator.getInstance(Number::of, Stack::newInstance);
+        rpn.push(tokens);
+        return rpn.evaluate();
+    }
+
+    @Benchmark
+    public List<Either<Exception, Number>> buildMemoized() {
+        Calculator<Number> rpn = Calculator.getMemoizedInstance(Number::of, Stack::newInstance);
+        rpn.push(tokens);
+        return rpn.evaluate();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<Either<Exception, Number>> sharedCached() {
+        return cached.evaluate();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<Either<Exception, Number>> sharedMemoized() {
+        return memoized.evaluate();
+    }
+}
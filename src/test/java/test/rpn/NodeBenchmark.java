@@ -0,0 +1,121 @@
+package test.rpn;
+
+import io.vavr.control.Either;
+import org.openjdk.jmh.annotations.*;
+import rpn.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Evaluation of a tree of 4095 nodes built by CommandFactory.heap() (final
+ * node class per operator) against the former anonymous nodes that dispatch
+ * through Opcode.apply(), on HybridNumber so that the arithmetic is cheap
+ * enough for dispatch to matter.
+ *
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main NodeBenchmark"
+ *
+ * Inlining decisions: append to -Dexec.args
+ *     -jvmArgsAppend "-XX:+UnlockDiagnosticVMOptions -XX:+PrintInlining"
+ * and look for "rpn.CommandFactory$Add::apply ... inline (hot)" followed by
+ * "rpn.HybridNumber::add ... inline (hot)". With the former nodes,
+ * Opcode::apply is inlined but the Operatable call behind its switch is
+ * shared by every operator of the tree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NodeBenchmark {
+    private static final int DEPTH = 11;
+
+    private Command<HybridNumber> nodes;
+    private Command<HybridNumber> generic;
+
+    @Setup
+    public void setup() {
+        nodes = tree(CommandFactory.heap(), new Random(42), DEPTH);
+        generic = tree(new GenericFactory<>(), new Random(42), DEPTH);
+    }
+
+    private static Command<HybridNumber> tree(CommandFactory<HybridNumber> factory, Random random, int depth) {
+        if (depth == 0)
+            return factory.literal(HybridNumber.of(random.nextInt(100) + "." + random.nextInt(100)).get());
+        // products only near the leaves, so that values stay compact
+        Opcode opcode = depth == 1 ? Opcode.Multiply : random.nextBoolean() ? Opcode.Add : Opcode.Subtract;
+        return factory.binary(opcode, tree(factory, random, depth - 1), tree(factory, random, depth - 1));
+    }
+
+    @Benchmark
+    public Either<Exception, HybridNumber> finalNodes() {
+        return nodes.apply();
+    }
+
+    @Benchmark
+    public Either<Exception, HybridNumber> opcodeSwitch() {
+        return generic.apply();
+    }
+
+    /*
+     * The node construction CommandFactory.heap() replaced.
+     */
+    private static final class GenericFactory<E extends Operatable<E>> implements CommandFactory<E> {
+        @Override
+        public Command<E> literal(E value) {
+            return new Command<E>() {
+                @Override
+                public Either<Exception, E> apply() {
+                    return Either.right(value);
+                }
+
+                @Override
+                public List<Command<E>> undo() {
+                    return Arrays.asList();
+                }
+
+                @Override
+                public int size() {
+                    return 1;
+                }
+            };
+        }
+
+        @Override
+        public Command<E> unary(Opcode opcode, Command<E> operand) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Command<E> binary(Opcode opcode, Command<E> left, Command<E> right) {
+            return new Command<E>() {
+                @Override
+                public Either<Exception, E> apply() {
+                    Either<Exception, E> leftEither = left.apply();
+                    if (leftEither.isLeft()) return leftEither;
+                    Either<Exception, E> rightEither = right.apply();
+                    if (rightEither.isLeft()) return rightEither;
+                    try {
+                        return Either.right(opcode.apply(leftEither.get(), rightEither.get()));
+                    } catch (Exception e) {
+                        return Either.left(e);
+                    }
+                }
+
+                @Override
+                public List<Command<E>> undo() {
+                    return Arrays.asList(left, right);
+                }
+
+                @Override
+                public int size() {
+                    return 1 + left.size() + right.size();
+                }
+            };
+        }
+    }
+}
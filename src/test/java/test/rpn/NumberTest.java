@@ -4,14 +4,28 @@ import static org.junit.jupiter.api.Assertions.*;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import org.junit.jupiter.api.Test;
+import rpn.Failure;
 import rpn.Number;
 
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.util.Collections;
+import java.util.Random;
+
 public class NumberTest {
     @Test
     public void testCanCreateNumber() {
         assertFalse(Number.of("fail").isPresent());
         assertFalse(Number.of("").isPresent());
         assertFalse(Number.of(null).isPresent());
+        assertFalse(Number.of("-").isPresent());
+        assertFalse(Number.of(".").isPresent());
+        assertFalse(Number.of("1e").isPresent());
+        assertFalse(Number.of("1.2.3").isPresent());
+        assertEquals(Number.of("+4.5").get().toString(), "4.5");
+        assertEquals(Number.of("4.5E1").get().toString(), "45");
         assertEquals(Number.of("4").get().toString(), "4");
         assertEquals(Number.of("4.0").get().toString(), "4");
         assertEquals(Number.of("4.5").get().toString(), "4.5");
@@ -54,11 +68,20 @@ public class NumberTest {
         assertEquals(Number.of("-4.545").get().divide(Number.of("5.43").get()).toString(), "-0.8370165745");
         assertEquals(Number.of("-4.545").get().divide(Number.of("5.43").get()).getValue().toString(), "-0.837016574585635");
 
+        // high precision sqrt
+        assertEquals(Number.of("2", 40, 10).get().sqrt().getValue().toPlainString(), "1.4142135623730950488016887242096980785696");
+        assertEquals(Number.of("12345678901234567890123456789").get().sqrt().getValue().toPlainString(), "111111110611111.109936111105818");
+        assertEquals(Number.of("0.000000000000000000123", 30, 10).get().sqrt().getValue().toPlainString(), "0.000000000350713558335003638336");
+        assertEquals(Number.of("99999999999999999999999999999999999999999999999999", 10, 10).get().sqrt().getValue().toPlainString(), "9999999999999999999999999.9999999999");
+        assertEquals(Number.of("0.0001").get().sqrt().toString(), "0.01");
+        assertEquals(Number.of("0").get().sqrt().toString(), "0");
+        assertEquals(Number.of("144").get().sqrt().sqrt().getValue().toPlainString(), "3.464101615137754");
+
         // exceptions
-        assertThrows(ArithmeticException.class, () -> {
+        assertThrows(Failure.class, () -> {
             Number.of("-4.545").get().divide(Number.of("0").get());
         });
-        assertThrows(NumberFormatException.class, () -> {
+        assertThrows(Failure.class, () -> {
             Number.of("-4.545").get().sqrt();
         });
         assertThrows(NullPointerException.class, () -> {
@@ -67,4 +90,31 @@ public class NumberTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testCanRenderLikeDecimalFormat() throws IOException {
+        Random random = new Random(42);
+        String[] fixed = {"0", "-0.00000000001", "0.00000000001", "-0.5", "999999999999999999", "-9.99999999999999",
+                "12345678901234567890.123", "1E+30", "-1E-30", "100", "0.1000000000"};
+        for (int run = 0; run < 2000; run++) {
+            int precision = random.nextInt(20);
+            int displayPrecision = random.nextInt(precision + 1);
+            String literal = run < fixed.length ? fixed[run]
+                    : (random.nextBoolean() ? "-" : "") + random.nextInt(100000) + "." + Math.abs(random.nextLong());
+            Number n = Number.of(literal, precision, displayPrecision).get();
+            DecimalFormat expected = new DecimalFormat("#." + String.join("", Collections.nCopies(displayPrecision, "#")));
+            expected.setRoundingMode(RoundingMode.DOWN);
+            StringBuilder rendered = new StringBuilder("=");
+            n.render(rendered);
+            assertEquals(expected.format(n.getValue()), n.toString(), literal);
+            assertEquals("=" + n, rendered.toString(), literal);
+        }
+
+        // any other format is honoured as is
+        DecimalFormat grouped = new DecimalFormat("#,##0.00");
+        Number n = Number.of(new BigDecimal("-1234567.891"), 15, grouped);
+        StringBuilder rendered = new StringBuilder();
+        n.render(rendered);
+        assertEquals("-1,234,567.89", n.toString());
+        assertEquals("-1,234,567.89", rendered.toString());
+    }
+}
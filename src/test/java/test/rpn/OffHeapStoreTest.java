@@ -0,0 +1,112 @@
+package test.rpn;
+
+import io.vavr.control.Either;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import rpn.*;
+import rpn.Number;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OffHeapStoreTest {
+    private OffHeapStore<Number> store;
+    private Stack<Command<Number>> stack;
+
+    @BeforeEach
+    public void init() {
+        store = OffHeapStore.newInstance();
+        stack = store.newStack();
+    }
+
+    @Test
+    public void testCanBuildAndEvaluateTree() {
+        Command<Number> tree = store.binary(Opcode.Multiply,
+                store.binary(Opcode.Add, literal("1"), literal("2")),
+                store.unary(Opcode.Sqrt, literal("16")));
+        assertEquals(Opcode.Multiply, tree.opcode());
+        assertEquals(6, tree.size());
+        assertEquals("12", tree.apply().get().toString());
+        assertEquals(6, store.nodeCount());
+        List<Command<Number>> children = tree.undo();
+        assertEquals(Arrays.asList(Opcode.Add, Opcode.Sqrt), children.stream().map(Command::opcode).collect(Collectors.toList()));
+        assertEquals("4", children.get(1).apply().get().toString());
+    }
+
+    @Test
+    public void testCanPushAndPopStack() {
+        stack.push(Arrays.asList(literal("1"), literal("2"), literal("3")));
+        assertEquals(3, stack.size());
+        assertEquals(3, stack.allSize());
+        List<Command<Number>> popped = stack.pop(2);
+        assertEquals(Arrays.asList("2", "3"), toList(popped));
+        stack.push(Arrays.asList(store.binary(Opcode.Subtract, popped.get(0), popped.get(1))));
+        assertEquals(Arrays.asList("1", "-1"), toList(stack.allElements()));
+        assertEquals(4, stack.allSize());
+        assertEquals(Arrays.asList(), stack.pop(3));
+        assertEquals(2, stack.size());
+    }
+
+    @Test
+    public void testCanGrowStack() {
+        for (int i = 0; i < 5000; i++)
+            stack.push(Arrays.asList(literal(Integer.toString(i))));
+        assertEquals(5000, stack.size());
+        assertEquals("4999", stack.pop(1).get(0).apply().get().toString());
+        assertEquals("0", stack.allElements().get(0).apply().get().toString());
+    }
+
+    @Test
+    public void testAccountsWholeStore() {
+        for (int i = 0; i < 100; i++)
+            stack.push(Arrays.asList(literal(Integer.toString(i))));
+        long pushed = stack.retainedBytes();
+        assertTrue(store.retainedBytes() > store.offHeapBytes());
+        // and the stack's ids, 1024 to begin with
+        assertEquals(store.retainedBytes() + 1024 * Integer.BYTES, pushed);
+        // popped nodes stay in the store, and so do their bytes
+        stack.pop(100);
+        assertEquals(pushed, stack.retainedBytes());
+        stack.push(Arrays.asList(literal("1")));
+        assertTrue(stack.retainedBytes() > pushed);
+    }
+
+    @Test
+    public void testCanStoreForeignCommand() {
+        Command<Number> foreign = CommandFactory.<Number>heap().literal(Number.of("7").get());
+        stack.push(Arrays.asList(foreign));
+        Command<Number> view = stack.pop(1).get(0);
+        assertEquals(Opcode.Custom, view.opcode());
+        assertEquals("7", view.apply().get().toString());
+    }
+
+    @Test
+    public void testCanEvaluateOffHeapCalculator() {
+        Calculator<Number> rpn = Calculator.getOffHeapInstance(Number::of);
+        assertFalse(rpn.push("5", "4", "3", "2", "undo", "undo", "*", "5", "*", "undo").isPresent());
+        assertEquals(Arrays.asList("20", "5"), toStrings(rpn.evaluate()));
+        assertFalse(rpn.push("clear", "1", "2", "3", "+", "-", "sqrt", "2", "*", "6", "5", "*").isPresent());
+        List<Either<Exception, Number>> result = rpn.evaluate();
+        assertEquals(Failure.NEGATIVE_SQRT, result.get(0).getLeft());
+        assertEquals("30", result.get(1).get().toString());
+        Optional<Exception> maybeException = rpn.push("clear", "1", "2", "3", "*", "5", "+", "*", "*");
+        assertEquals("Operator '*' (position 8), insufficient parameter", maybeException.get().getMessage());
+        assertEquals(Arrays.asList("11"), toStrings(rpn.evaluate()));
+    }
+
+    private Command<Number> literal(String value) {
+        return store.literal(Number.of(value).get());
+    }
+
+    private static List<String> toList(List<Command<Number>> commands) {
+        return commands.stream().map(c -> c.apply().get().toString()).collect(Collectors.toList());
+    }
+
+    private static List<String> toStrings(List<Either<Exception, Number>> results) {
+        return results.stream().map(r -> r.get().toString()).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,68 @@
+package test.rpn;
+
+import io.vavr.control.Either;
+import org.openjdk.jmh.annotations.*;
+import rpn.*;
+import rpn.Number;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Cost of the profiler on uncached evaluation of 100 trees of 31 nodes:
+ * no decorator, decorated but not sampled, and every evaluation traced.
+ *
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main ProfilerBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProfilerBenchmark {
+    private Calculator<Number> plain;
+    private Calculator<Number> traced;
+    private Profiler never;
+    private Profiler always;
+
+    @Setup
+    public void setup() {
+        never = Profiler.newInstance(Integer.MAX_VALUE);
+        always = Profiler.newInstance(1);
+        plain = Calculator.getInstance(Number::of, Stack::newInstance, CacheStrategy.<Number>none());
+        traced = Calculator.getInstance(Number::of, Stack::newInstance, never.<Number>traced(CacheStrategy.none()));
+        Random random = new Random(42);
+        for (int entry = 0; entry < 100; entry++) {
+            for (int i = 0; i < 16; i++) {
+                String value = Integer.toString(random.nextInt(1000) + 1);
+                plain.push(value);
+                traced.push(value);
+            }
+            for (int i = 0; i < 15; i++) {
+                String operator = random.nextBoolean() ? "+" : "*";
+                plain.push(operator);
+                traced.push(operator);
+            }
+        }
+        // consume the one sampled evaluation of never
+        traced.evaluate(never);
+    }
+
+    @Benchmark
+    public List<Either<Exception, Number>> undecorated() {
+        return plain.evaluate();
+    }
+
+    @Benchmark
+    public List<Either<Exception, Number>> notSampled() {
+        return traced.evaluate(never);
+    }
+
+    @Benchmark
+    public List<Either<Exception, Number>> traced() {
+        return traced.evaluate(always);
+    }
+}
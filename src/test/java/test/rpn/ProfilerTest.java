@@ -0,0 +1,105 @@
+package test.rpn;
+
+import io.vavr.control.Either;
+import org.junit.jupiter.api.Test;
+import rpn.*;
+import rpn.Number;
+import rpn.Stack;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProfilerTest {
+    @Test
+    public void testCanTraceOperatorsAndEntries() {
+        Profiler profiler = Profiler.newInstance(1);
+        Calculator<Number> rpn = Calculator.getInstance(Number::of, Stack::newInstance, profiler.<Number>traced(CacheStrategy.get()));
+        rpn.push("2", "sqrt", "3", "4", "+", "*", "5");
+        List<String> traced = toStrings(rpn.evaluate(profiler));
+        assertEquals(toStrings(rpn.evaluate()), traced);
+
+        Profiler.Report report = profiler.report();
+        assertEquals(1, report.getSampled());
+        Map<String, Profiler.OperatorStats> operators = byOperator(report);
+        assertEquals(1, operators.get("*").getCount());
+        assertEquals(1, operators.get("sqrt").getCount());
+        assertEquals(1, operators.get("+").getCount());
+        assertEquals(4, operators.get("literal").getCount());
+        assertEquals(2, operators.get("literal").getMaxDepth());
+
+        Profiler.EntryStats first = report.getEntries().stream().filter(e -> e.getIndex() == 0).findFirst().get();
+        assertEquals(6, first.getPosition());
+        assertEquals(6, first.getSize());
+        assertEquals("*", first.getOperator());
+        assertEquals(6, first.getNodes());
+        Profiler.EntryStats second = report.getEntries().stream().filter(e -> e.getIndex() == 1).findFirst().get();
+        assertEquals(7, second.getPosition());
+        assertEquals("literal", second.getOperator());
+        assertTrue(report.getCollapsed().containsKey("entry 0 at 6;*;sqrt;literal"));
+        assertTrue(report.getCollapsed().containsKey("entry 1 at 7;literal"));
+    }
+
+    @Test
+    public void testCanCountCacheHits() {
+        Profiler profiler = Profiler.newInstance(1);
+        Calculator<Number> rpn = Calculator.getInstance(
+                Number::of, CommandFactory.memoized(), Stack::newInstance, profiler.<Number>traced(CacheStrategy.none()));
+        rpn.push("2", "sqrt", "3", "4", "+", "*");
+        rpn.evaluate(profiler);
+        rpn.evaluate(profiler);
+
+        Map<String, Profiler.OperatorStats> operators = byOperator(profiler.report());
+        assertEquals(2, operators.get("*").getCount());
+        assertEquals(1, operators.get("*").getHits());
+        assertEquals(1, operators.get("sqrt").getCount());
+        assertEquals(0, operators.get("sqrt").getHits());
+    }
+
+    @Test
+    public void testCanSample() {
+        Profiler profiler = Profiler.newInstance(10);
+        Calculator<Number> rpn = Calculator.getInstance(Number::of, Stack::newInstance, profiler.<Number>traced(CacheStrategy.get()));
+        rpn.push("1", "2", "+");
+        for (int i = 0; i < 25; i++)
+            assertEquals("3", rpn.evaluate(profiler).get(0).get().toString());
+        assertEquals(25, profiler.report().getEvaluations());
+        assertEquals(3, profiler.report().getSampled());
+
+        profiler.reset();
+        rpn.evaluate();
+        assertEquals(0, profiler.report().getSampled());
+        assertTrue(profiler.report().getCollapsed().isEmpty());
+    }
+
+    @Test
+    public void testCanExportCollapsedStacksAfterUndo() throws IOException {
+        Profiler profiler = Profiler.newInstance(1);
+        Calculator<Number> rpn = Calculator.getInstance(Number::of, Stack::newInstance, profiler.<Number>traced(CacheStrategy.get()));
+        rpn.push("2", "sqrt", "3", "*", "undo");
+        rpn.evaluate(profiler);
+
+        StringBuilder out = new StringBuilder();
+        profiler.report().writeCollapsed(out);
+        List<String> frames = Arrays.stream(out.toString().split("\n")).map(l -> l.substring(0, l.lastIndexOf(' '))).collect(Collectors.toList());
+        assertEquals(3, frames.size());
+        assertTrue(frames.contains("entry 0 at 2;sqrt"));
+        assertTrue(frames.contains("entry 0 at 2;sqrt;literal"));
+        assertTrue(frames.contains("entry 1 at 3;literal"));
+        for (String line : out.toString().split("\n"))
+            assertTrue(line.matches(".+ \\d+"), line);
+    }
+
+    private static Map<String, Profiler.OperatorStats> byOperator(Profiler.Report report) {
+        return report.getOperators().stream().collect(Collectors.toMap(Profiler.OperatorStats::getOperator, o -> o));
+    }
+
+    private static List<String> toStrings(List<Either<Exception, Number>> results) {
+        return results.stream().map(r -> r.isLeft() ? r.getLeft().getMessage() : r.get().toString())
+                .collect(Collectors.toList());
+    }
+}
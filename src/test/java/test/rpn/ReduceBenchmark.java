@@ -0,0 +1,57 @@
+package test.rpn;
+
+import io.vavr.control.Either;
+import org.openjdk.jmh.annotations.*;
+import rpn.*;
+import rpn.Number;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Evaluation of the sum of n stack entries: a chain of n - 1 "+" against
+ * a single "sum", balanced and forked across the common pool above a
+ * leaf of 1024 operands. Nothing is cached, every invocation evaluates
+ * the whole tree.
+ *
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main ReduceBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReduceBenchmark {
+    @Param({"1000", "4000"})
+    private int n;
+
+    private Calculator<Number> chain;
+    private Calculator<Number> reduction;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        chain = Calculator.getInstance(Number::of, Stack::newInstance, CacheStrategy.<Number>none());
+        reduction = Calculator.getInstance(Number::of, Stack::newInstance, CacheStrategy.<Number>none());
+        for (int i = 0; i < n; i++) {
+            String operand = random.nextInt(100000) + "." + random.nextInt(1000);
+            chain.push(operand);
+            if (i > 0) chain.push("+");
+            reduction.push(operand);
+        }
+        reduction.push("sum");
+    }
+
+    @Benchmark
+    public List<Either<Exception, Number>> chain() {
+        return chain.evaluate();
+    }
+
+    @Benchmark
+    public List<Either<Exception, Number>> sum() {
+        return reduction.evaluate();
+    }
+}
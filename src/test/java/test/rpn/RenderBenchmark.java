@@ -0,0 +1,92 @@
+package test.rpn;
+
+import io.vavr.control.Either;
+import org.openjdk.jmh.annotations.*;
+import rpn.*;
+import rpn.Number;
+
+import java.io.IOException;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.text.DecimalFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/*
+ * Display of a 1000 entry stack: joining strings, formatted the way
+ * Number used to (DecimalFormat) or with toString(), against rendering
+ * every result into a reused StringBuilder. The render*Stack benchmarks
+ * include Calculator.render()'s evaluation of the stack.
+ * Run with -prof gc to see the allocation per operation.
+ *
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main RenderBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderBenchmark {
+    private Calculator<Number> rpn;
+    private List<Either<Exception, Number>> results;
+    private final StringBuilder builder = new StringBuilder(1 << 16);
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(1 << 16);
+    private final DecimalFormat format = new DecimalFormat("#.##########");
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        rpn = Calculator.getInstance(Number::of, Stack::newInstance);
+        for (int i = 0; i < 1000; i++) {
+            rpn.push(Integer.toString(random.nextInt(100000) - 50000), Integer.toString(random.nextInt(999) + 1));
+            rpn.push(random.nextBoolean() ? "/" : "*");
+        }
+        results = rpn.evaluate();
+        format.setRoundingMode(RoundingMode.DOWN);
+        // numbers work out their display once
+        rpn.render(bytes);
+    }
+
+    @Benchmark
+    public String joinDecimalFormat() {
+        return results.stream()
+                .map(r -> r.isLeft() ? r.getLeft().getMessage() : format.format(r.get().getValue()))
+                .collect(Collectors.joining(" "));
+    }
+
+    @Benchmark
+    public String joinToString() {
+        return results.stream()
+                .map(r -> r.isLeft() ? r.getLeft().getMessage() : r.get().toString())
+                .collect(Collectors.joining(" "));
+    }
+
+    @Benchmark
+    public int renderResults() throws IOException {
+        builder.setLength(0);
+        for (Either<Exception, Number> r : results) {
+            if (r.isLeft()) builder.append(r.getLeft().getMessage());
+            else r.get().render(builder);
+            builder.append(' ');
+        }
+        return builder.length();
+    }
+
+    @Benchmark
+    public int renderStackToStringBuilder() throws IOException {
+        builder.setLength(0);
+        rpn.render(builder);
+        return builder.length();
+    }
+
+    @Benchmark
+    public int renderStackToByteBuffer() {
+        bytes.clear();
+        rpn.render(bytes);
+        return bytes.position();
+    }
+}
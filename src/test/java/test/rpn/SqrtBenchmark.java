@@ -0,0 +1,55 @@
+package test.rpn;
+
+import org.openjdk.jmh.annotations.*;
+import rpn.Number;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Newton sqrt (with its memo) against the former double round-trip.
+ * distinct: number of different operands cycled through, large
+ * enough to defeat the memo when above its 256 slots.
+ *
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main SqrtBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SqrtBenchmark {
+    @Param({"1", "100000"})
+    int distinct;
+
+    private Number[] operands;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        operands = new Number[distinct];
+        for (int i = 0; i < distinct; i++)
+            operands[i] = Number.of(random.nextInt(1000000) + "." + random.nextInt(1000000)).get();
+    }
+
+    private Number operand() {
+        Number n = operands[next];
+        next = next + 1 == operands.length ? 0 : next + 1;
+        return n;
+    }
+
+    @Benchmark
+    public Number newton() {
+        return operand().sqrt();
+    }
+
+    @Benchmark
+    public BigDecimal doubleRoundTrip() {
+        return BigDecimal.valueOf(Math.sqrt(operand().getValue().doubleValue())).setScale(15, RoundingMode.DOWN);
+    }
+}
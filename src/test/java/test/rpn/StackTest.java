@@ -4,6 +4,7 @@ import io.vavr.control.Either;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import rpn.Command;
+import rpn.Measurable;
 import rpn.Stack;
 
 import java.util.Arrays;
@@ -62,6 +63,7 @@ public class StackTest {
         assertEquals(Arrays.asList(expected), actual);
         assertEquals(stack.size(), expected.length);
         assertEquals(stack.allSize(), expected.length * 2);
+        assertEquals(expected.length * 2L * (Measurable.OBJECT_BYTES + Measurable.RESULT_BYTES), stack.retainedBytes());
     }
 
     public static List<String> toList(Stream<Command<String>> stream) {